@@ -0,0 +1,199 @@
+package definitely.not.deezer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the link between playback and downloads, streams are never limited.
+ * StreamServer reports bytes sent to the player, from which the buffer lead of each stream is estimated.
+ * While a playing stream has low lead, downloads (separate process) get a limit, applied by their TokenBucket.
+ */
+public class BandwidthManager {
+    //Start limiting downloads below this lead
+    private static final long LOW_LEAD = 15 * 1000;
+    //Remove limit above this lead (hysteresis)
+    private static final long HIGH_LEAD = 30 * 1000;
+    //Download limit in B/s with no lead, grows with lead up to MAX_LIMIT
+    static final long MIN_LIMIT = 32 * 1024;
+    static final long MAX_LIMIT = 512 * 1024;
+    //Stream without reads for longer isn't playing (paused, player buffer full)
+    private static final long IDLE = 3000;
+    private static final long CHECK_INTERVAL = 1000;
+
+    /**
+     * Receives new download limit.
+     */
+    interface Listener {
+        /**
+         * @param limit Bytes per second for all downloads, 0 = unlimited
+         */
+        void onDownloadLimit(long limit);
+    }
+
+    private final Listener listener;
+    private final Set<Stream> streams = new HashSet<>();
+    private ScheduledExecutorService scheduler;
+    //Last sent limit, 0 = unlimited
+    private long limit = 0;
+
+    BandwidthManager(Listener listener) {
+        this.listener = listener;
+    }
+
+    synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this::check, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+        scheduler = null;
+        streams.clear();
+        update(0);
+    }
+
+    /**
+     * Track response sent to the player.
+     * @param inputStream Response body
+     * @param bitrate Playback bitrate in bit/s
+     * @return Stream counting sent bytes
+     */
+    InputStream stream(InputStream inputStream, long bitrate) {
+        Stream stream = new Stream(inputStream, bitrate / 8);
+        synchronized (this) {
+            streams.add(stream);
+        }
+        return stream;
+    }
+
+    //Evaluate leads of playing streams
+    private void check() {
+        long now = System.currentTimeMillis();
+        long lead = Long.MAX_VALUE;
+        synchronized (this) {
+            for (Stream stream : streams) {
+                if (now - stream.lastRead <= IDLE)
+                    lead = Math.min(lead, stream.lead());
+            }
+            if (lead >= HIGH_LEAD || (limit == 0 && lead >= LOW_LEAD)) {
+                update(0);
+                return;
+            }
+            update(MIN_LIMIT + (MAX_LIMIT - MIN_LIMIT) * Math.max(lead, 0) / HIGH_LEAD);
+        }
+    }
+
+    //Notify only on bigger changes, has to hold lock
+    private void update(long newLimit) {
+        if (newLimit == limit) return;
+        if (newLimit != 0 && limit != 0 && Math.abs(newLimit - limit) < limit / 10) return;
+        limit = newLimit;
+        listener.onDownloadLimit(newLimit);
+    }
+
+    /**
+     * Response body with estimated player buffer lead.
+     */
+    private class Stream extends FilterInputStream {
+        private final long byteRate;
+        private volatile long bytes = 0;
+        //Estimated ms played
+        private volatile long playTime = 0;
+        private volatile long lastRead = System.currentTimeMillis();
+        private boolean closed = false;
+
+        Stream(InputStream in, long byteRate) {
+            super(in);
+            this.byteRate = Math.max(byteRate, 1);
+        }
+
+        //Buffered ms of audio ahead of playback
+        long lead() {
+            return bytes * 1000 / byteRate - playTime;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            long now = System.currentTimeMillis();
+            if (read > 0)
+                bytes += read;
+            //Player stopped reading with full buffer (or paused) and continues below it
+            if (now - lastRead > IDLE)
+                playTime = bytes * 1000 / byteRate - HIGH_LEAD;
+            else
+                playTime += now - lastRead;
+            lastRead = now;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (closed) return;
+            closed = true;
+            synchronized (BandwidthManager.this) {
+                streams.remove(this);
+            }
+        }
+    }
+
+    /**
+     * Token bucket shared by download threads, unlimited until a limit is set.
+     */
+    static class TokenBucket {
+        //Burst of at most this much of a second
+        private static final long BURST_MS = 250;
+
+        //Bytes per second, 0 = unlimited
+        private long rate = 0;
+        private double tokens = 0;
+        private long updated = System.nanoTime();
+
+        /**
+         * @param rate Bytes per second, 0 = unlimited
+         */
+        synchronized void setRate(long rate) {
+            this.rate = Math.max(rate, 0);
+            tokens = 0;
+            updated = System.nanoTime();
+            notifyAll();
+        }
+
+        /**
+         * Wait until bytes can be downloaded, called after each read.
+         * @param bytes Bytes read
+         */
+        synchronized void take(int bytes) {
+            while (rate > 0) {
+                long now = System.nanoTime();
+                tokens = Math.min(tokens + (now - updated) * rate / 1e9, Math.max(rate * BURST_MS / 1000, bytes));
+                updated = now;
+                if (tokens >= bytes) {
+                    tokens -= bytes;
+                    return;
+                }
+                try {
+                    wait(Math.max(1, (long) ((bytes - tokens) * 1000 / rate)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
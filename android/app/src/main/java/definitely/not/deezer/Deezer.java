@@ -1,5 +1,6 @@
 package definitely.not.deezer;
 
+import android.content.Context;
 import android.util.Log;
 import android.util.Pair;
 
@@ -21,15 +22,14 @@ import org.json.JSONObject;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.net.URL;
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Objects;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
@@ -43,16 +43,41 @@ public class Deezer {
 
     static String USER_AGENT = "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/79.0.3945.130 Safari/537.36";
     DownloadLog logger;
-    String token;
-    String arl;
-    String sid;
-    String licenseToken;
+    volatile String arl;
     String contentLanguage = "en";
-    boolean authorized = false;
-    boolean authorizing = false;
+    //checkForm token, sid & license token, single login for all threads
+    private final DeezerSession session = new DeezerSession(this::login);
+
+    //Concurrent song.getListData lookups in one request
+    private final TrackDataBatcher trackData = new TrackDataBatcher(this);
+    //api.deezer.com responses, shared by concurrent lookups
+    private final PublicApiCache publicApi = new PublicApiCache(this::loadPublicAPI);
+
+    //One client per process
+    private static Deezer instance;
 
     Deezer() {}
 
+    /**
+     * Client shared by StreamServer and DownloadService, owns log, session and caches.
+     * They run in separate processes, the session file & public API cache dir are shared between them.
+     * @param context Any context, application context is kept
+     * @return Process wide client
+     */
+    static synchronized Deezer getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            DownloadLog logger = new DownloadLog();
+            logger.open(appContext);
+            Deezer deezer = new Deezer();
+            deezer.init(logger, "");
+            deezer.setPublicApiCacheDir(new File(appContext.getCacheDir(), "api"));
+            deezer.setSessionFile(new File(appContext.getFilesDir(), "deezer_session.json"));
+            instance = deezer;
+        }
+        return instance;
+    }
+
     //Initialize for logging
     void init(DownloadLog logger, String arl) {
         //Load native
@@ -65,18 +90,61 @@ public class Deezer {
     // Method for when using c libraries for decryption
     //public native void decryptFile(String trackId, String inputFilename, String outputFilename);
 
-    //Authorize GWLight API
+    /**
+     * Keep public API responses on disk too.
+     * @param dir Cache directory
+     */
+    void setPublicApiCacheDir(File dir) {
+        publicApi.setDir(dir);
+    }
+
+    /**
+     * Persist session, the one saved by the last run is used right away.
+     * @param file File in app private storage
+     */
+    void setSessionFile(File file) {
+        session.setFile(file);
+    }
+
+    //Authorize GWLight API, waits for login already in progress
     public void authorize() {
-        if (!authorized || sid == null || token == null) {
-            authorizing = true;
-            try {
-                callGWAPI("deezer.getUserData", "{}");
-                authorized = true;
-            } catch (Exception e) {
-                logger.warn("Error authorizing to Deezer API! " + e);
-            }
+        try {
+            session.get(arl);
+        } catch (Exception e) {
+            logger.warn("Error authorizing to Deezer API! " + e);
         }
-        authorizing = false;
+    }
+
+    //deezer.getUserData without token, called by session
+    private DeezerSession.Snapshot login(String arl) throws Exception {
+        JSONObject out = gwRequest("deezer.getUserData", "{}", arl, "null", null);
+        JSONObject results = out.getJSONObject("results");
+        // Get User license code
+        String licenseToken = null;
+        try {
+            JSONObject userData = results.getJSONObject("USER");
+            licenseToken = userData.getJSONObject("OPTIONS").getString("license_token");
+        } catch (JSONException e) {
+            e.printStackTrace();
+            logger.warn("Error getting user License Token - FLAC not available! " + e);
+        }
+        return new DeezerSession.Snapshot(arl, results.getString("checkForm"), results.getString("SESSION_ID"), licenseToken, System.currentTimeMillis() + DeezerSession.TTL);
+    }
+
+    //License token of session, null if not available
+    private String licenseToken() {
+        try {
+            return session.get(arl).licenseToken;
+        } catch (Exception e) {
+            logger.warn("Error authorizing to Deezer API! " + e);
+            return null;
+        }
+    }
+
+    //arl cookie, with sid of current session if logged in
+    private String cookie() {
+        DeezerSession.Snapshot snapshot = session.peek();
+        return "arl=" + arl + ((snapshot == null || !Objects.equals(snapshot.arl, arl)) ? "" : "; sid=" + snapshot.sid);
     }
 
     //Make POST request
@@ -93,6 +161,7 @@ public class Deezer {
             connection.setRequestProperty("Accept-Language", contentLanguage + ",*");
             connection.setRequestProperty("Content-Type", "application/json");
             connection.setRequestProperty("Accept", "*/*");
+            HttpResponseReader.acceptGzip(connection);
 
             // Add additional headers if provided
             if (additionalHeaders != null && !additionalHeaders.isEmpty()) {
@@ -109,13 +178,7 @@ public class Deezer {
             }
 
             //Get response
-            try (Scanner scanner = new Scanner(connection.getInputStream())) {
-                StringBuilder output = new StringBuilder();
-                while (scanner.hasNext()) {
-                    output.append(scanner.nextLine());
-                }
-                result = output.toString();
-            }
+            result = HttpResponseReader.read(connection);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -124,12 +187,19 @@ public class Deezer {
     }
 
     public JSONObject callGWAPI(String method, String body) throws Exception {
-        //Get token
-        if (token == null) {
-            token = "null";
-            callGWAPI("deezer.getUserData", "{}");
+        String arl = this.arl;
+        DeezerSession.Snapshot snapshot = session.get(arl);
+        JSONObject out = gwRequest(method, body, arl, snapshot.token, snapshot.sid);
+        //Token expired early, log in again once
+        if (DeezerSession.isTokenError(out)) {
+            session.invalidate(snapshot);
+            snapshot = session.get(arl);
+            out = gwRequest(method, body, arl, snapshot.token, snapshot.sid);
         }
+        return out;
+    }
 
+    private JSONObject gwRequest(String method, String body, String arl, String token, String sid) throws Exception {
         // Construct cookie header
         Map<String, String> cookies = new HashMap<>();
         cookies.put("Cookie", "arl=" + arl + (sid == null ? "" : "; sid=" + sid));
@@ -141,48 +211,39 @@ public class Deezer {
         );
 
         //Parse JSON
-        JSONObject out = new JSONObject(data);
-
-        //Save token
-        if ((token == null || token.equals("null")) && method.equals("deezer.getUserData")) {
-            token = out.getJSONObject("results").getString("checkForm");
-            sid = out.getJSONObject("results").getString("SESSION_ID");
-
-            // Get User license code
-            try {
-                JSONObject userData = out.getJSONObject("results").getJSONObject("USER");
-                licenseToken = userData.getJSONObject("OPTIONS").getString("license_token");
-            } catch (JSONException e) {
-                e.printStackTrace();
-                logger.warn("Error getting user License Token - FLAC not available! " + e);
-            }
-        }
+        return new JSONObject(data);
+    }
 
-        return out;
+    /**
+     * Private track data (song.getListData), batched with concurrent lookups.
+     * @param trackId Track ID
+     * @return Track data
+     * @throws Exception If the request failed or the track isn't available
+     */
+    public JSONObject getTrackData(String trackId) throws Exception {
+        return trackData.get(trackId);
     }
 
-    //api.deezer.com/$method/$param
+    //api.deezer.com/$method/$param, cached
     public JSONObject callPublicAPI(String method, String param) throws Exception {
+        return publicApi.get(method, param, contentLanguage);
+    }
+
+    //Uncached request, raw JSON
+    private String loadPublicAPI(String method, String param) throws Exception {
         URL url = new URL("https://api.deezer.com/" + method + "/" + param);
         HttpsURLConnection connection = (HttpsURLConnection)url.openConnection();
         connection.setRequestMethod("GET");
         connection.setRequestProperty("Accept-Language", contentLanguage + ",*");
         connection.setConnectTimeout(20000);
+        HttpResponseReader.acceptGzip(connection);
         connection.connect();
 
-        //Get string data
-        StringBuilder data = new StringBuilder();
-        InputStream inputStream = connection.getInputStream();
-        try (Scanner scanner = new Scanner(new InputStreamReader(inputStream))) {
-            while (scanner.hasNext()) {
-                data.append(scanner.nextLine());
-            }
+        try {
+            return HttpResponseReader.read(connection);
         } finally {
             connection.disconnect();
         }
-
-        //Parse JSON & return
-        return new JSONObject(data.toString());
     }
 
     // Method to call the Pipe API
@@ -197,7 +258,7 @@ public class Deezer {
 
         // Headers
         Map<String, String> headers = new HashMap<>();
-        headers.put("Cookie", "arl=" + arl + (sid == null ? "" : "; sid=" + sid));
+        headers.put("Cookie", cookie());
         headers.put("Authorization", "Bearer " + jwtToken);
 
         // Convert params to JSON string
@@ -216,7 +277,7 @@ public class Deezer {
     public String getJsonWebToken() throws Exception{
         String urlString = "https://auth.deezer.com/login/arl?jo=p&rto=c&i=c";
         Map<String, String> cookies = new HashMap<>();
-        cookies.put("Cookie", "arl=" + arl + (sid == null ? "" : "; sid=" + sid));
+        cookies.put("Cookie", cookie());
         String response = POST(urlString, "", cookies);
 
         // Parse JSON and return JWT
@@ -323,15 +384,10 @@ public class Deezer {
     public Pair<String, Boolean> getTrackUrl(String trackId, String trackToken, String md5origin, String mediaVersion,
             int quality, int refreshAttempt) {
         // Hi-Fi url gen
-        if (this.licenseToken != null && (quality > 0)) {
+        String licenseToken = licenseToken();
+        if (licenseToken != null && (quality > 0)) {
             String url = null;
-            String format = "FLAC";
-
-            if (quality == 3) {
-                format = "MP3_320";
-            } else if (quality == 1) {
-                format = "MP3_128";
-            }
+            String format = formatName(quality);
 
             try {
                 //arl cookie
@@ -356,8 +412,7 @@ public class Deezer {
                                 JSONObject error = errors.getJSONObject(j);
                                 if (error.getInt("code") == 2001 && refreshAttempt < 1) {
                                     // Track token is expired, attempt 1 track data refresh
-                                    JSONObject privateJson = callGWAPI("song.getListData", "{\"sng_ids\": [" + trackId + "]}");
-                                    JSONObject trackData = privateJson.getJSONObject("results").getJSONArray("data").getJSONObject(0);
+                                    JSONObject trackData = getTrackData(trackId);
                                     trackId = trackData.getString("SNG_ID");
                                     trackToken = trackData.getString("TRACK_TOKEN");
                                     md5origin = trackData.getString("MD5_ORIGIN");
@@ -385,6 +440,51 @@ public class Deezer {
         return new Pair<String, Boolean>(generateTrackUrl(trackId, md5origin, mediaVersion, quality), true);
     }
 
+    /**
+     * Resolve URLs of many tracks with a single get_url request.
+     * Tracks with an error (expired token, unavailable quality) are left out, they go through fallback.
+     * @param trackTokens Track tokens, see TrackUrlResolver.BATCH_SIZE
+     * @param quality Requested quality (9, 3, 1)
+     * @return URL by track token
+     */
+    public Map<String, String> getTrackUrls(List<String> trackTokens, int quality) {
+        Map<String, String> urls = new HashMap<>();
+        if (quality <= 0 || trackTokens.isEmpty())
+            return urls;
+        String licenseToken = licenseToken();
+        if (licenseToken == null)
+            return urls;
+        try {
+            Map<String, String> cookies = new HashMap<>();
+            cookies.put("Cookie", "arl=" + arl);
+            JSONObject payload = new JSONObject();
+            payload.put("license_token", licenseToken);
+            payload.put("media", new JSONArray("[{ \"type\": \"FULL\", \"formats\": [{ \"cipher\": \"BF_CBC_STRIPE\", \"format\": \"" + formatName(quality) + "\"}]}]"));
+            payload.put("track_tokens", new JSONArray(trackTokens));
+            String output = POST("https://media.deezer.com/v1/get_url", payload.toString(), cookies);
+
+            //Results are in the order of tokens
+            JSONArray data = new JSONObject(output).optJSONArray("data");
+            for (int i = 0; data != null && i < data.length() && i < trackTokens.size(); i++) {
+                JSONObject track = data.getJSONObject(i);
+                JSONArray media = track.optJSONArray("media");
+                if (track.has("errors") || media == null || media.length() == 0)
+                    continue;
+                urls.put(trackTokens.get(i), media.getJSONObject(0).getJSONArray("sources").getJSONObject(0).getString("url"));
+            }
+        } catch (Exception e) {
+            logger.warn("Error getting streaming URLs: " + e);
+        }
+        return urls;
+    }
+
+    //get_url format name of quality
+    private static String formatName(int quality) {
+        if (quality == 3) return "MP3_320";
+        if (quality == 1) return "MP3_128";
+        return "FLAC";
+    }
+
     public static String sanitize(String input) {
         return input.replaceAll("[\\\\/?*:%<>|\"]", "").replace("$", "\\$");
     }
@@ -640,6 +740,8 @@ public class Deezer {
         int initialQuality;
         DownloadLog logger;
         boolean encrypted;
+        //URL from batch resolution, used instead of get_url for the first attempt
+        String resolvedUrl;
 
         QualityInfo(int quality, String trackId, String trackToken, String md5origin, String mediaVersion, DownloadLog logger) {
             this.quality = quality;
@@ -669,15 +771,13 @@ public class Deezer {
             //Track ID Fallback
             JSONObject privateJson = null;
             try {
-                //Fetch meta
-                JSONObject privateRaw = deezer.callGWAPI("deezer.pageTrack", "{\"sng_id\": \"" + trackId + "\"}");
-                privateJson = privateRaw.getJSONObject("results").getJSONObject("DATA");
+                //Fetch meta, has FALLBACK & ISRC
+                privateJson = deezer.getTrackData(trackId);
                 if (privateJson.has("FALLBACK")) {
                     //Fetch new track
                     String fallbackId = privateJson.getJSONObject("FALLBACK").getString("SNG_ID");
                     if (!fallbackId.equals(trackId)) {
-                        JSONObject newPrivate = deezer.callGWAPI("song.getListData", "{\"sng_ids\": [" + fallbackId + "]}");
-                        JSONObject trackData = newPrivate.getJSONObject("results").getJSONArray("data").getJSONObject(0);
+                        JSONObject trackData = deezer.getTrackData(fallbackId);
                         trackId = trackData.getString("SNG_ID");
                         trackToken = trackData.getString("TRACK_TOKEN");
                         md5origin = trackData.getString("MD5_ORIGIN");
@@ -695,8 +795,7 @@ public class Deezer {
                 //Same track check
                 if (newTrackJson.getInt("id") == Integer.parseInt(trackId)) throw new Exception("No more to ISRC fallback!");
                 //Get private data
-                privateJson = deezer.callGWAPI("song.getListData", "{\"sng_ids\": [" + newTrackJson.getInt("id") + "]}");
-                JSONObject trackData = privateJson.getJSONObject("results").getJSONArray("data").getJSONObject(0);
+                JSONObject trackData = deezer.getTrackData(Integer.toString(newTrackJson.getInt("id")));
                 trackId = trackData.getString("SNG_ID");
                 trackToken = trackData.getString("TRACK_TOKEN");
                 md5origin = trackData.getString("MD5_ORIGIN");
@@ -710,7 +809,13 @@ public class Deezer {
         }
 
         private String qualityFallback(Deezer deezer) throws Exception {
-            Pair<String,Boolean> urlGen = deezer.getTrackUrl(trackId, trackToken, md5origin, mediaVersion, quality, 0);
+            Pair<String,Boolean> urlGen;
+            if (resolvedUrl != null) {
+                urlGen = new Pair<>(resolvedUrl, true);
+                resolvedUrl = null;
+            } else {
+                urlGen = deezer.getTrackUrl(trackId, trackToken, md5origin, mediaVersion, quality, 0);
+            }
             this.encrypted = urlGen.second;
 
             // initialise as "404 Not Found"
@@ -2,53 +2,311 @@ package definitely.not.deezer;
 
 import android.util.Log;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
-
-import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.spec.IvParameterSpec;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class DeezerDecryptor {
-    private final Cipher cipher;
+    static final int STRIPE_SIZE = 2048;
+
+    private static final byte[] KEY_SECRET = {'g', '4', 'e', 'l', '5', '8', 'w', 'c', '0', 'z', 'v', 'f', '9', 'n', 'a', '1'};
+    private static final byte[] HEX_LOWER = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final int KEY_CACHE_SIZE = 64;
+
+    //MessageDigest isn't thread safe, one per thread instead of getInstance on every call
+    private static final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                Log.e("E", e.toString());
+                return null;
+            }
+        }
+    };
+
+    //Derived keys of recently used tracks, every range request of a stream asks again
+    private static final Map<String, byte[]> keyCache = new LinkedHashMap<String, byte[]>(KEY_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > KEY_CACHE_SIZE;
+        }
+    };
+
+    private final BlowfishStripeCipher cipher;
 
     /**
      * Constructor initializes the key and cipher for the given track ID.
+     * Key schedule is shared between decryptors of recently used tracks.
      * @param trackId Track ID used to generate decryption key
      * @throws Exception If there is an issue initializing the cipher
      */
     public DeezerDecryptor(String trackId) throws Exception {
-        this.cipher = Cipher.getInstance("Blowfish/CBC/NoPadding");
-        byte[] IV = {00, 01, 02, 03, 04, 05, 06, 07};
-        SecretKeySpec Skey = new SecretKeySpec(getKey(trackId), "Blowfish");
-        cipher.init(Cipher.DECRYPT_MODE, Skey, new IvParameterSpec(IV));
+        this.cipher = BlowfishStripeCipher.forTrack(trackId);
     }
 
     /**
-     * Decrypts a file by reading it in chunks and decrypting every 3rd chunk of exactly 2048 bytes.
-     * @param inputFilename The input file to decrypt
-     * @param outputFilename The output file to write the decrypted data
+     * Decrypts a file in place. The file is memory mapped and only the encrypted stripes (every 3rd) are rewritten,
+     * the other two thirds of the data are never read or written and no second file is created.
+     * @param filename The file to decrypt, at most 2GB
      * @throws IOException If an I/O error occurs
      */
-    public void decryptFile(String inputFilename, String outputFilename) throws IOException {
-        try (FileInputStream fis = new FileInputStream(inputFilename);
-             FileOutputStream fos = new FileOutputStream(outputFilename)) {
-            byte[] buffer = new byte[2048];
-            int bytesRead;
-            int chunkCounter = 0;
-
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                // Only every 3rd chunk of exactly 2048 bytes should be decrypted
-                if (bytesRead == 2048 && (chunkCounter % 3) == 0) {
-                    buffer = decryptChunk(buffer);
+    public void decryptFileInPlace(String filename) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+            long size = file.length();
+            if (size == 0) return;
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int stripes = (int) ((size + STRIPE_SIZE - 1) / STRIPE_SIZE);
+            ForkJoinPool.commonPool().invoke(new StripeTask(cipher, buffer, 0, stripes));
+            buffer.force();
+        }
+    }
+
+    /**
+     * Decrypts range of stripes [from, to) of a mapped file in place, splits itself until the range is small enough.
+     * Only the encrypted stripes are touched.
+     */
+    private static class StripeTask extends RecursiveAction {
+        //Stripes per leaf task (384KB)
+        private static final int BATCH = 192;
+
+        private final BlowfishStripeCipher cipher;
+        private final ByteBuffer buffer;
+        private final int from;
+        private final int to;
+
+        StripeTask(BlowfishStripeCipher cipher, ByteBuffer buffer, int from, int to) {
+            this.cipher = cipher;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH) {
+                int mid = from + (to - from) / 2;
+                invokeAll(new StripeTask(cipher, buffer, from, mid), new StripeTask(cipher, buffer, mid, to));
+                return;
+            }
+            //Own view, buffer position isn't thread safe
+            ByteBuffer view = buffer.duplicate();
+            byte[] stripe = new byte[STRIPE_SIZE];
+            //Only every 3rd full stripe is encrypted, skip to them
+            for (int i = from + (3 - from % 3) % 3; i < to; i += 3) {
+                int offset = i * STRIPE_SIZE;
+                if (view.capacity() - offset < STRIPE_SIZE) break;
+                view.position(offset);
+                view.get(stripe);
+                cipher.decryptStripe(stripe, 0);
+                view.position(offset);
+                view.put(stripe);
+            }
+        }
+    }
+
+    /**
+     * Output stream which decrypts data on the fly while it is being written.
+     * Data is cut into 2048-byte stripes counted from the start of the track, every 3rd full stripe is decrypted.
+     * Trailing bytes of an incomplete stripe are written as-is on close, so callers resuming an interrupted
+     * download have to truncate the file to a stripe boundary first.
+     */
+    static class DecryptingOutputStream extends FilterOutputStream {
+        private final DeezerDecryptor decryptor;
+        private final byte[] stripe = new byte[STRIPE_SIZE];
+        private int stripeFill = 0;
+        private long stripeCounter;
+
+        /**
+         * @param out Destination stream for decrypted data
+         * @param decryptor Decryptor initialized for the track
+         * @param offset Position of the first written byte in the track, has to be stripe aligned
+         */
+        DecryptingOutputStream(OutputStream out, DeezerDecryptor decryptor, long offset) {
+            super(out);
+            if (offset % STRIPE_SIZE != 0)
+                throw new IllegalArgumentException("Offset is not stripe aligned: " + offset);
+            this.decryptor = decryptor;
+            this.stripeCounter = offset / STRIPE_SIZE;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, STRIPE_SIZE - stripeFill);
+                System.arraycopy(b, off, stripe, stripeFill, n);
+                stripeFill += n;
+                off += n;
+                len -= n;
+                //Full stripe, decrypt every 3rd and pass on
+                if (stripeFill == STRIPE_SIZE) {
+                    if ((stripeCounter % 3) == 0) {
+                        decryptor.decryptStripe(stripe, 0);
+                    }
+                    out.write(stripe, 0, STRIPE_SIZE);
+                    stripeFill = 0;
+                    stripeCounter++;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            //Last stripe of a track is never encrypted
+            if (stripeFill > 0) {
+                out.write(stripe, 0, stripeFill);
+                stripeFill = 0;
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Input stream which decrypts the stripes of an encrypted track while it is being read.
+     * One instance is used for the whole stream, stripes are decrypted in place, so reading doesn't allocate.
+     * Full stripes are read straight into the caller's buffer when it has room for them.
+     */
+    static class DecryptingInputStream extends FilterInputStream {
+        private final DeezerDecryptor decryptor;
+        //Used only for stripes which don't fit into the caller's buffer
+        private final byte[] stripe = new byte[STRIPE_SIZE];
+        private int stripePos = 0;
+        private int stripeLimit = 0;
+        private long stripeCounter;
+        private int drop;
+        private StreamMetrics metrics;
+
+        /**
+         * @param in Encrypted source stream
+         * @param decryptor Decryptor initialized for the track
+         * @param offset Position of the first byte of the source in the track, has to be stripe aligned
+         * @param drop Number of decrypted bytes to skip at the start (requested offset - stripe aligned offset)
+         */
+        DecryptingInputStream(InputStream in, DeezerDecryptor decryptor, long offset, int drop) {
+            super(in);
+            if (offset % STRIPE_SIZE != 0)
+                throw new IllegalArgumentException("Offset is not stripe aligned: " + offset);
+            this.decryptor = decryptor;
+            this.stripeCounter = offset / STRIPE_SIZE;
+            this.drop = drop;
+        }
+
+        /**
+         * @param metrics Records decryption time
+         * @return This stream
+         */
+        DecryptingInputStream measure(StreamMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (stripePos == stripeLimit && fillStripe() <= 0)
+                return -1;
+            return stripe[stripePos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            //Leftover from previous stripe
+            if (stripePos < stripeLimit) {
+                int n = Math.min(len, stripeLimit - stripePos);
+                System.arraycopy(stripe, stripePos, b, off, n);
+                stripePos += n;
+                return n;
+            }
+            //Whole stripes directly into the caller's buffer
+            if (drop == 0 && len >= STRIPE_SIZE) {
+                int total = 0;
+                while (len - total >= STRIPE_SIZE) {
+                    int read = readStripe(b, off + total);
+                    total += read;
+                    if (read != STRIPE_SIZE) break;
+                }
+                return (total == 0) ? -1 : total;
+            }
+            //Small reads go through the stripe buffer
+            if (fillStripe() <= 0)
+                return -1;
+            int n = Math.min(len, stripeLimit - stripePos);
+            System.arraycopy(stripe, stripePos, b, off, n);
+            stripePos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] tmp = new byte[STRIPE_SIZE];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(tmp, 0, (int) Math.min(tmp.length, n - skipped));
+                if (read == -1) break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return stripeLimit - stripePos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        //Read next stripe into the stripe buffer, apply drop, returns bytes available
+        private int fillStripe() throws IOException {
+            int read = readStripe(stripe, 0);
+            stripePos = Math.min(drop, read);
+            stripeLimit = read;
+            drop = 0;
+            return stripeLimit - stripePos;
+        }
+
+        //Read 2048b or until EOF, decrypt every 3rd full stripe
+        private int readStripe(byte[] b, int off) throws IOException {
+            int total = 0;
+            while (total < STRIPE_SIZE) {
+                int read = in.read(b, off + total, STRIPE_SIZE - total);
+                if (read == -1) break;
+                total += read;
+            }
+            //Not full chunk return unencrypted
+            if (total == STRIPE_SIZE) {
+                if ((stripeCounter % 3) == 0) {
+                    if (metrics != null) {
+                        long start = System.nanoTime();
+                        decryptor.decryptStripe(b, off);
+                        metrics.decrypted(STRIPE_SIZE, System.nanoTime() - start);
+                    } else {
+                        decryptor.decryptStripe(b, off);
+                    }
                 }
-                fos.write(buffer, 0, bytesRead);
-                chunkCounter++;
+                stripeCounter++;
             }
-        } catch (IOException e) {
-            throw e;
+            return total;
         }
     }
 
@@ -70,61 +328,48 @@ public class DeezerDecryptor {
 
     /**
      * Generates the Track decryption key based on the provided track ID and a secret.
+     * Key = hex(md5(id))[0..16] ^ hex(md5(id))[16..32] ^ secret, computed on bytes.
+     * Keys of recently used tracks are cached, the returned array is shared and must not be modified.
      * @param id Track ID used to generate decryption key
      * @return Decryption key for Track
      */
     static byte[] getKey(String id) {
-        final String secret = "g4el58wc0zvf9na1";
-        try {
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            md5.update(id.getBytes());
-            byte[] md5id = md5.digest();
-            String idmd5 = bytesToHex(md5id).toLowerCase();
-            String key = "";
-            for (int i = 0; i < 16; i++) {
-                int s0 = idmd5.charAt(i);
-                int s1 = idmd5.charAt(i + 16);
-                int s2 = secret.charAt(i);
-                key += (char) (s0 ^ s1 ^ s2);
-            }
-            return key.getBytes();
-        } catch (Exception e) {
-            Log.e("E", e.toString());
-            return new byte[0];
+        synchronized (keyCache) {
+            byte[] key = keyCache.get(id);
+            if (key != null)
+                return key;
         }
-    }
 
-    /**
-     * Decrypts a 2048-byte chunk of data using the pre-initialized Blowfish cipher.
-     * @param data 2048-byte chunk of data to decrypt
-     * @return Decrypted 2048-byte chunk
-     */
-    private byte[] decryptChunk(byte[] data) {
-        try {
-            return cipher.doFinal(data);
-        } catch (Exception e) {
-            Log.e("D", e.toString());
+        MessageDigest digest = md5.get();
+        if (digest == null)
             return new byte[0];
+        byte[] md5id = digest.digest(id.getBytes());
+        byte[] key = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            //i-th and (i+16)-th character of lowercase hex digest
+            int s0 = HEX_LOWER[hexNibble(md5id, i)];
+            int s1 = HEX_LOWER[hexNibble(md5id, i + 16)];
+            key[i] = (byte) (s0 ^ s1 ^ KEY_SECRET[i]);
+        }
+
+        synchronized (keyCache) {
+            keyCache.put(id, key);
         }
+        return key;
+    }
+
+    //n-th nibble of byte array, high nibble first
+    private static int hexNibble(byte[] bytes, int n) {
+        int v = bytes[n >> 1] & 0xFF;
+        return ((n & 1) == 0) ? (v >>> 4) : (v & 0x0F);
     }
 
     /**
-     * Decrypts a 2048-byte chunk of data using the Blowfish algorithm in CBC mode with no padding.
-     * The decryption key and the initial vector (IV) are used to decrypt the data.
-     * @param key Track key
-     * @param data 2048-byte chunk of data to decrypt
-     * @return Decrypted 2048-byte chunk
+     * Decrypts a 2048-byte stripe in place using the pre-initialized Blowfish cipher.
+     * @param data Buffer containing the stripe
+     * @param offset Offset of the stripe in the buffer
      */
-    public static byte[] decryptChunk(byte[] key, byte[] data) {
-        try {
-            byte[] IV = {00, 01, 02, 03, 04, 05, 06, 07};
-            SecretKeySpec Skey = new SecretKeySpec(key, "Blowfish");
-            Cipher cipher = Cipher.getInstance("Blowfish/CBC/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, Skey, new IvParameterSpec(IV));
-            return cipher.doFinal(data);
-        } catch (Exception e) {
-            Log.e("D", e.toString());
-            return new byte[0];
-        }
+    void decryptStripe(byte[] data, int offset) {
+        cipher.decryptStripe(data, offset);
     }
 }
\ No newline at end of file
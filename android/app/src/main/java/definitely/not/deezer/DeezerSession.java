@@ -0,0 +1,316 @@
+package definitely.not.deezer;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GW session (checkForm token, sid, license token) of Deezer client, published as one immutable snapshot.
+ * Only one login runs at a time, other callers wait for its result. The session is renewed in background
+ * shortly before it expires and again right away once the API rejects the token.
+ * Sessions can be persisted, so after restart requests don't have to wait for a login. The file is shared
+ * with the other process (StreamServer, DownloadService), a login of one is picked up by the other.
+ */
+public class DeezerSession {
+    private static final String TAG = "DeezerSession";
+    //Deezer doesn't say, sessions are good for longer
+    static final long TTL = 60 * 60 * 1000;
+    //Renew in background when this close to expiry
+    private static final long REFRESH_MARGIN = 10 * 60 * 1000;
+    private static final long LOGIN_TIMEOUT = 60 * 1000;
+
+    /**
+     * Logs in with arl (deezer.getUserData).
+     */
+    interface Login {
+        Snapshot login(String arl) throws Exception;
+    }
+
+    /**
+     * Session values of a single login.
+     */
+    static class Snapshot {
+        final String arl;
+        final String token;
+        final String sid;
+        //null = FLAC & get_url not available
+        final String licenseToken;
+        final long expires;
+
+        Snapshot(String arl, String token, String sid, String licenseToken, long expires) {
+            this.arl = arl;
+            this.token = token;
+            this.sid = sid;
+            this.licenseToken = licenseToken;
+            this.expires = expires;
+        }
+    }
+
+    private final Login login;
+    private volatile Snapshot current;
+    //Persisted session, null = not persisted
+    private volatile File file;
+    //Loaded from file, used once requested with the same arl
+    private volatile JSONObject restored;
+    //Restored session until a login confirms the arl still works
+    private volatile Snapshot unverified;
+    //Last modification of file seen, newer one was written by other process
+    private long fileModified = 0;
+    //Token rejected by the API, not adopted from file again
+    private String rejectedToken;
+    //Login in progress
+    private FutureTask<Snapshot> inflight;
+
+    DeezerSession(Login login) {
+        this.login = login;
+    }
+
+    /**
+     * Get valid session, logs in (or waits for running login) if there is none.
+     * @param arl Current arl, session of other arl isn't used
+     * @return Session
+     * @throws Exception If login failed
+     */
+    Snapshot get(String arl) throws Exception {
+        Snapshot snapshot = current;
+        if (snapshot == null && restored != null)
+            snapshot = restore(arl);
+        long now = System.currentTimeMillis();
+        if (snapshot != null && Objects.equals(snapshot.arl, arl) && snapshot.expires > now) {
+            //Still valid, renew before callers have to wait for it
+            if (snapshot.expires - now < REFRESH_MARGIN)
+                refresh(arl);
+            return snapshot;
+        }
+
+        boolean run = false;
+        FutureTask<Snapshot> task;
+        synchronized (this) {
+            task = inflight;
+            //Other process logged in meanwhile
+            if (task == null && (snapshot = reload(arl)) != null)
+                return snapshot;
+            if (task == null) {
+                task = newLogin(arl);
+                run = true;
+            }
+        }
+        if (run)
+            task.run();
+        try {
+            Snapshot result = task.get(LOGIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            //Login for previous arl finished meanwhile
+            if (!Objects.equals(result.arl, arl))
+                return get(arl);
+            return result;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof Exception) ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * @return Current session without logging in, null if none
+     */
+    Snapshot peek() {
+        return current;
+    }
+
+    /**
+     * Drop session rejected by the API, next get() logs in again.
+     * @param rejected Session used for the failed request
+     */
+    synchronized void invalidate(Snapshot rejected) {
+        rejectedToken = rejected.token;
+        if (current == rejected)
+            current = null;
+    }
+
+    //Background login, current session stays in use meanwhile
+    private void refresh(String arl) {
+        FutureTask<Snapshot> task;
+        synchronized (this) {
+            if (inflight != null) return;
+            Snapshot reloaded = reload(arl);
+            if (reloaded != null && reloaded.expires - System.currentTimeMillis() >= REFRESH_MARGIN)
+                return;
+            task = newLogin(arl);
+        }
+        new Thread(task).start();
+    }
+
+    //Has to hold lock
+    private FutureTask<Snapshot> newLogin(String arl) {
+        FutureTask<Snapshot> task = new FutureTask<>(() -> {
+            try {
+                Snapshot snapshot = login.login(arl);
+                current = snapshot;
+                unverified = null;
+                save(snapshot);
+                return snapshot;
+            } catch (Exception e) {
+                //Saved session can't be trusted either
+                Snapshot restored = unverified;
+                if (restored != null) {
+                    unverified = null;
+                    invalidate(restored);
+                }
+                throw e;
+            } finally {
+                synchronized (DeezerSession.this) {
+                    inflight = null;
+                }
+            }
+        });
+        inflight = task;
+        return task;
+    }
+
+    /**
+     * Persist sessions into file, loads session saved by last run.
+     * @param file File in app private storage
+     */
+    synchronized void setFile(File file) {
+        this.file = file;
+        if (!file.exists()) return;
+        try {
+            fileModified = file.lastModified();
+            JSONObject json = new JSONObject(readFile(file));
+            if (json.getLong("expires") > System.currentTimeMillis())
+                restored = json;
+        } catch (Exception e) {
+            Log.w(TAG, "Invalid saved session: " + e);
+        }
+    }
+
+    //Use saved session if it belongs to arl, checked by logging in again in background
+    private synchronized Snapshot restore(String arl) {
+        JSONObject json = restored;
+        if (current != null || json == null)
+            return current;
+        try {
+            //Other account, kept in case the arl changes back
+            if (arl == null || !json.getString("arlHash").equals(hash(arl)))
+                return null;
+            restored = null;
+            Snapshot snapshot = parse(json, arl);
+            if (snapshot == null)
+                return null;
+            current = snapshot;
+            unverified = snapshot;
+        } catch (Exception e) {
+            Log.w(TAG, "Invalid saved session: " + e);
+            restored = null;
+            return null;
+        }
+        refresh(arl);
+        return current;
+    }
+
+    //Adopt session saved by other process since last read, has to hold lock
+    private Snapshot reload(String arl) {
+        File file = this.file;
+        if (file == null || arl == null) return null;
+        long modified = file.lastModified();
+        if (modified == 0 || modified == fileModified) return null;
+        fileModified = modified;
+        try {
+            JSONObject json = new JSONObject(readFile(file));
+            if (!json.getString("arlHash").equals(hash(arl)))
+                return null;
+            Snapshot snapshot = parse(json, arl);
+            if (snapshot == null || snapshot.token.equals(rejectedToken))
+                return null;
+            //Made by a login, doesn't need checking
+            current = snapshot;
+            restored = null;
+            return snapshot;
+        } catch (Exception e) {
+            Log.w(TAG, "Invalid saved session: " + e);
+            return null;
+        }
+    }
+
+    //Session from file, null if expired
+    private static Snapshot parse(JSONObject json, String arl) throws Exception {
+        if (json.getLong("expires") <= System.currentTimeMillis())
+            return null;
+        return new Snapshot(arl, json.getString("token"), json.getString("sid"),
+                json.has("licenseToken") ? json.getString("licenseToken") : null, json.getLong("expires"));
+    }
+
+    //Written to temp file first, other process might be reading it
+    private void save(Snapshot snapshot) {
+        File file = this.file;
+        if (file == null || snapshot.arl == null) return;
+        File temp;
+        try {
+            //Unique, both processes can be saving
+            temp = File.createTempFile("session", ".tmp", file.getParentFile());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed saving session: " + e);
+            return;
+        }
+        try (OutputStream outputStream = new FileOutputStream(temp)) {
+            JSONObject json = new JSONObject();
+            json.put("arlHash", hash(snapshot.arl));
+            json.put("token", snapshot.token);
+            json.put("sid", snapshot.sid);
+            if (snapshot.licenseToken != null)
+                json.put("licenseToken", snapshot.licenseToken);
+            json.put("expires", snapshot.expires);
+            outputStream.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            Log.w(TAG, "Failed saving session: " + e);
+            temp.delete();
+            return;
+        }
+        synchronized (this) {
+            if (temp.renameTo(file))
+                fileModified = file.lastModified();
+            else
+                temp.delete();
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = inputStream.read(data, read, data.length - read);
+                if (n == -1) break;
+                read += n;
+            }
+        }
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    //arl itself isn't saved
+    private static String hash(String arl) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return DeezerDecryptor.bytesToHex(digest.digest(arl.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param response GW API response
+     * @return true if the checkForm token was rejected
+     */
+    static boolean isTokenError(JSONObject response) {
+        JSONObject error = response.optJSONObject("error");
+        return error != null && (error.has("VALID_TOKEN_REQUIRED") || error.has("NEED_API_AUTH_REQUIRED"));
+    }
+}
@@ -35,11 +35,13 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.channels.FileChannel;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -60,6 +62,7 @@ public class DownloadService extends Service {
     static final int SERVICE_REMOVE_DOWNLOADS = 9;
     static final int SERVICE_REGISTER_CLIENT = 10;
     static final int SERVICE_UNREGISTER_CLIENT = 11;
+    static final int SERVICE_BANDWIDTH_LIMIT = 12;
 
     static final String NOTIFICATION_CHANNEL_ID = "alchemydownloads";
     static final int NOTIFICATION_ID_START = 6969;
@@ -70,7 +73,12 @@ public class DownloadService extends Service {
     DownloadSettings settings;
     Context context;
     SQLiteDatabase db;
-    Deezer deezer = new Deezer();
+    //Shared client, set in onCreate
+    Deezer deezer;
+    //get_url for queued tracks in batches
+    TrackUrlResolver urlResolver;
+    //Shared by download threads, limited while playback buffer is low
+    BandwidthManager.TokenBucket bandwidth = new BandwidthManager.TokenBucket();
 
     Messenger serviceMessenger;
     Messenger activityMessenger;
@@ -81,7 +89,7 @@ public class DownloadService extends Service {
     ArrayList<Boolean> updateRequests = new ArrayList<>();
     boolean updating = false;
     Handler progressUpdateHandler = new Handler(Looper.getMainLooper());
-    DownloadLog logger = new DownloadLog();
+    DownloadLog logger;
 
     public DownloadService() {
     }
@@ -96,9 +104,10 @@ public class DownloadService extends Service {
         createNotificationChannel();
         createProgressUpdateHandler();
 
-        //Setup logger, deezer api
-        logger.open(context);
-        deezer.init(logger, "");
+        //Setup deezer api & its logger
+        deezer = Deezer.getInstance(context);
+        logger = deezer.logger;
+        urlResolver = new TrackUrlResolver(deezer);
 
         //Get DB
         DownloadsDatabase dbHelper = new DownloadsDatabase(getApplicationContext());
@@ -109,8 +118,7 @@ public class DownloadService extends Service {
     public void onDestroy() {
         //Cancel notifications
         notificationManager.cancelAll();
-        //Logger
-        logger.close();
+        //Logger is owned by the shared client, stays open for the process
         super.onDestroy();
     }
 
@@ -200,6 +208,14 @@ public class DownloadService extends Service {
                     }
                 }
             }
+            //Tracks left in queue get resolved together with the next started one
+            LinkedHashMap<String, Integer> pending = new LinkedHashMap<>();
+            for (int j = 0; j < downloads.size(); j++) {
+                Download d = downloads.get(j);
+                if (d.state == Download.DownloadState.NONE && !d.isEpisode && !d.isUserUploaded() && d.trackToken != null)
+                    pending.put(d.trackToken, d.quality);
+            }
+            urlResolver.setPending(pending);
             //Check if last download
             if (threads.isEmpty()) {
                 running = false;
@@ -293,6 +309,7 @@ public class DownloadService extends Service {
         JSONObject privateJson;
         Lyrics lyricsData = null;
         boolean stopDownload = false;
+        boolean encryptAtRest = false;
 
         DownloadThread(Download download) {
             this.download = download;
@@ -303,15 +320,8 @@ public class DownloadService extends Service {
             //Set state
             download.state = Download.DownloadState.DOWNLOADING;
 
-            //Authorize deezer api
-            if (!deezer.authorized && !deezer.authorizing)
-                deezer.authorize();
-
-            while (deezer.authorizing)
-                try {
-                    Thread.sleep(50);
-                } catch (Exception ignored) {
-                }
+            //Authorize deezer api, threads wait for the same login
+            deezer.authorize();
 
             //Don't fetch meta if user uploaded mp3
             if (!download.isUserUploaded() && !download.isEpisode) {
@@ -327,8 +337,8 @@ public class DownloadService extends Service {
                 }
             }
 
-            //Temporary encrypted file
-            File tmpFile = new File(getCacheDir(), download.id + ".ENC");
+            //Temporary file, tracks are decrypted while downloading
+            File tmpFile = new File(getCacheDir(), download.id + ".tmp");
             
             if (!download.isEpisode) {
 
@@ -337,6 +347,7 @@ public class DownloadService extends Service {
                 String sURL = null;
                 if (!download.isUserUploaded()) {
                     try {
+                        qualityInfo.resolvedUrl = urlResolver.resolve(download.trackToken, download.quality);
                         sURL = qualityInfo.fallback(deezer);
                         if (sURL == null)
                             throw new Exception("No more to fallback!");
@@ -382,10 +393,39 @@ public class DownloadService extends Service {
                 }
     
     
+                //Offline tracks can be kept encrypted, decrypted only when played
+                encryptAtRest = download.priv && settings.encryptedOffline && qualityInfo.encrypted;
+
                 //Get start bytes offset
+                migrateLegacyTmpFile(tmpFile, qualityInfo.encrypted ? qualityInfo.trackId : null);
                 long start = 0;
+                //Partial download in other format (setting changed), restart
+                if (tmpFile.exists() && EncryptedTrackFile.isEncrypted(tmpFile) != encryptAtRest) {
+                    tmpFile.delete();
+                }
                 if (tmpFile.exists()) {
                     start = tmpFile.length();
+                    if (encryptAtRest) {
+                        //Broken or other track's header, restart
+                        if (!EncryptedTrackFile.hasHeader(tmpFile, qualityInfo.trackId)) {
+                            logger.warn("Invalid partial download header, restarting", download);
+                            tmpFile.delete();
+                            start = 0;
+                        } else {
+                            start -= EncryptedTrackFile.headerSize(qualityInfo.trackId);
+                        }
+                    }
+                    //Decryption has to continue on stripe boundary
+                    else if (qualityInfo.encrypted && start % DeezerDecryptor.STRIPE_SIZE != 0) {
+                        start -= start % DeezerDecryptor.STRIPE_SIZE;
+                        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+                            raf.setLength(start);
+                        } catch (Exception e) {
+                            logger.warn("Unable to truncate partial download, restarting: " + e.toString(), download);
+                            tmpFile.delete();
+                            start = 0;
+                        }
+                    }
                 }
     
                 //Download
@@ -403,7 +443,18 @@ public class DownloadService extends Service {
     
                     //Open streams
                     BufferedInputStream inputStream = new BufferedInputStream(connection.getInputStream());
+                    //Header only into new file, a file with just the header (stopped after connect) already has it
+                    boolean newFile = !tmpFile.exists() || tmpFile.length() == 0;
                     OutputStream outputStream = new FileOutputStream(tmpFile.getPath(), true);
+                    if (encryptAtRest) {
+                        //Store as served, header with key track ID first
+                        if (newFile)
+                            EncryptedTrackFile.writeHeader(outputStream, qualityInfo.trackId);
+                    } else if (qualityInfo.encrypted) {
+                        //Decrypt stripes as they arrive
+                        DeezerDecryptor decryptor = new DeezerDecryptor(qualityInfo.trackId);
+                        outputStream = new DeezerDecryptor.DecryptingOutputStream(outputStream, decryptor, start);
+                    }
                     //Save total
                     download.filesize = start + connection.getContentLength();
                     //Download
@@ -414,6 +465,7 @@ public class DownloadService extends Service {
                         outputStream.write(buffer, 0, read);
                         received += read;
                         download.received = start + received;
+                        bandwidth.take(read);
     
                         //Stop/Cancel download
                         if (stopDownload) {
@@ -444,23 +496,6 @@ public class DownloadService extends Service {
                     return;
                 }
     
-                //Post processing
-    
-                //Decrypt
-                if (qualityInfo.encrypted) {
-                    try {
-                        File decFile = new File(tmpFile.getPath() + ".DEC");
-                        DeezerDecryptor decryptor = new DeezerDecryptor(download.streamTrackId);
-                        decryptor.decryptFile(tmpFile.getPath(), decFile.getPath());
-                        tmpFile.delete();
-                        tmpFile = decFile;
-                    } catch (Exception e) {
-                        logger.error("Decryption error: " + e.toString(), download);
-                        e.printStackTrace();
-                        //Shouldn't ever fail
-                    }
-                }
-    
             } else {
 
                 try {
@@ -498,6 +533,7 @@ public class DownloadService extends Service {
                 }
 
                 //Get start bytes offset
+                migrateLegacyTmpFile(tmpFile, null);
                 long start = 0;
                 if (tmpFile.exists()) {
                     start = tmpFile.length();
@@ -528,6 +564,7 @@ public class DownloadService extends Service {
                         outputStream.write(buffer, 0, read);
                         received += read;
                         download.received = start + received;
+                        bandwidth.take(read);
     
                         //Stop/Cancel download
                         if (stopDownload) {
@@ -677,9 +714,10 @@ public class DownloadService extends Service {
                     }
                 }
 
-                //Tag
+                //Tag, encrypted offline files can't be tagged
                 try {
-                    deezer.tagTrack(outFile.getPath(), trackJson, albumJson, coverFile.getPath(), lyricsData, privateJson, settings);
+                    if (!encryptAtRest)
+                        deezer.tagTrack(outFile.getPath(), trackJson, albumJson, coverFile.getPath(), lyricsData, privateJson, settings);
                 } catch (Exception e) {
                     Log.e("ERR", "Tagging error!");
                     e.printStackTrace();
@@ -707,6 +745,33 @@ public class DownloadService extends Service {
             updateQueueWrapper();
         }
 
+        //Older versions downloaded the encrypted track into .ENC and decrypted it afterwards,
+        //convert such partial download, so it can be resumed. keyTrackId = null if not encrypted
+        void migrateLegacyTmpFile(File tmpFile, String keyTrackId) {
+            File legacyFile = new File(getCacheDir(), download.id + ".ENC");
+            if (!legacyFile.exists()) return;
+            if (tmpFile.exists()) {
+                legacyFile.delete();
+                return;
+            }
+            try {
+                if (keyTrackId != null) {
+                    //Drop incomplete stripe, decrypt the rest
+                    try (RandomAccessFile raf = new RandomAccessFile(legacyFile, "rw")) {
+                        raf.setLength(raf.length() - raf.length() % DeezerDecryptor.STRIPE_SIZE);
+                    }
+                    new DeezerDecryptor(keyTrackId).decryptFileInPlace(legacyFile.getPath());
+                }
+                if (!legacyFile.renameTo(tmpFile)) {
+                    legacyFile.delete();
+                }
+            } catch (Exception e) {
+                logger.warn("Unable to resume legacy partial download: " + e.toString(), download);
+                legacyFile.delete();
+                tmpFile.delete();
+            }
+        }
+
         //Each track has own album art, this is to download cover.jpg
         void downloadAlbumCover(JSONObject albumJson) {
             //Checks
@@ -976,6 +1041,11 @@ public class DownloadService extends Service {
                         isUiListening = false;
                         break;
 
+                //Set by stream server
+                case SERVICE_BANDWIDTH_LIMIT:
+                    bandwidth.setRate(msg.getData().getLong("limit"));
+                    break;
+
                 default:
                     super.handleMessage(msg);
             }
@@ -1009,8 +1079,9 @@ public class DownloadService extends Service {
         String deezerLanguage = "en";
         String deezerCountry = "US";
         SelectedTags tags;
+        boolean encryptedOffline;
 
-        private DownloadSettings(int downloadThreads, boolean overwriteDownload, boolean downloadLyrics, boolean trackCover, String arl, boolean albumCover, boolean nomediaFiles, String artistSeparator, int albumArtResolution, String deezerLanguage, String deezerCountry, SelectedTags tags) {
+        private DownloadSettings(int downloadThreads, boolean overwriteDownload, boolean downloadLyrics, boolean trackCover, String arl, boolean albumCover, boolean nomediaFiles, String artistSeparator, int albumArtResolution, String deezerLanguage, String deezerCountry, SelectedTags tags, boolean encryptedOffline) {
             this.downloadThreads = downloadThreads;
             this.overwriteDownload = overwriteDownload;
             this.downloadLyrics = downloadLyrics;
@@ -1023,6 +1094,7 @@ public class DownloadService extends Service {
             this.deezerLanguage = deezerLanguage;
             this.deezerCountry = deezerCountry;
             this.tags = tags;
+            this.encryptedOffline = encryptedOffline;
         }
 
         //Parse settings from bundle sent from UI
@@ -1042,7 +1114,8 @@ public class DownloadService extends Service {
                     json.getInt("albumArtResolution"),
                     json.getString("deezerLanguage"),
                     json.getString("deezerCountry"),
-                    new SelectedTags(json.getJSONArray("tags"))
+                    new SelectedTags(json.getJSONArray("tags")),
+                    json.optBoolean("encryptedOffline", false)
                 );
             } catch (Exception e) {
                 //Shouldn't happen
@@ -0,0 +1,246 @@
+package definitely.not.deezer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Offline track kept in its original stripe encrypted form (encrypted at rest).
+ * Layout: 8 byte magic, 1 byte length + ID of the track the key belongs to, then the track exactly as served by the CDN.
+ * Reads are mapped to the covered 2048-byte stripes, only those are decrypted.
+ */
+public class EncryptedTrackFile implements Closeable {
+    private static final byte[] MAGIC = {'A', 'L', 'C', 'H', 'E', 'N', 'C', '1'};
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final DeezerDecryptor decryptor;
+    private final long dataOffset;
+    private final long size;
+
+    /**
+     * Opens encrypted offline file.
+     * @param path File with header written by writeHeader
+     * @throws IOException If the file can't be read or isn't encrypted offline file
+     */
+    EncryptedTrackFile(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            file.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not an encrypted offline file: " + path);
+            byte[] id = new byte[file.readUnsignedByte()];
+            file.readFully(id);
+            decryptor = new DeezerDecryptor(new String(id));
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        } catch (Exception e) {
+            file.close();
+            throw new IOException("Failed initializing decryptor: " + e, e);
+        }
+        channel = file.getChannel();
+        dataOffset = file.getFilePointer();
+        size = file.length() - dataOffset;
+    }
+
+    /**
+     * Check whether the file starts with encrypted offline header.
+     * @param path File to check
+     * @return true if encrypted at rest
+     */
+    static boolean isEncrypted(File path) {
+        if (path.length() < MAGIC.length) return false;
+        try (FileInputStream inputStream = new FileInputStream(path)) {
+            byte[] magic = new byte[MAGIC.length];
+            int read = 0;
+            while (read < magic.length) {
+                int n = inputStream.read(magic, read, magic.length - read);
+                if (n == -1) return false;
+                read += n;
+            }
+            return Arrays.equals(magic, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check whether partial file starts with complete header for the key track.
+     * @param path File to check
+     * @param keyTrackId ID of the track the decryption key belongs to
+     * @return true if data can be appended to the file
+     */
+    static boolean hasHeader(File path, String keyTrackId) {
+        byte[] expected;
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeHeader(header, keyTrackId);
+            expected = header.toByteArray();
+        } catch (IOException e) {
+            return false;
+        }
+        if (path.length() < expected.length) return false;
+        try (FileInputStream inputStream = new FileInputStream(path)) {
+            byte[] header = new byte[expected.length];
+            int read = 0;
+            while (read < header.length) {
+                int n = inputStream.read(header, read, header.length - read);
+                if (n == -1) return false;
+                read += n;
+            }
+            return Arrays.equals(header, expected);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes header, the encrypted track data has to follow.
+     * @param out Output stream at the start of the file
+     * @param keyTrackId ID of the track the decryption key belongs to (stream track ID)
+     * @throws IOException If an I/O error occurs
+     */
+    static void writeHeader(OutputStream out, String keyTrackId) throws IOException {
+        out.write(MAGIC);
+        byte[] id = keyTrackId.getBytes();
+        out.write(id.length);
+        out.write(id);
+    }
+
+    /**
+     * @param keyTrackId ID of the track the decryption key belongs to
+     * @return Header length in bytes
+     */
+    static int headerSize(String keyTrackId) {
+        return MAGIC.length + 1 + keyTrackId.getBytes().length;
+    }
+
+    /**
+     * Copies offline file to destination, decrypting it if encrypted at rest.
+     * @param source Offline file
+     * @param destination Output file
+     * @throws IOException If an I/O error occurs
+     */
+    static void export(File source, File destination) throws IOException {
+        if (!isEncrypted(source)) {
+            try (FileInputStream inputStream = new FileInputStream(source);
+                 FileOutputStream outputStream = new FileOutputStream(destination)) {
+                FileChannel inputChannel = inputStream.getChannel();
+                inputChannel.transferTo(0, inputChannel.size(), outputStream.getChannel());
+            }
+            return;
+        }
+        try (EncryptedTrackFile encryptedFile = new EncryptedTrackFile(source);
+             InputStream inputStream = encryptedFile.openStream(0, -1);
+             FileOutputStream outputStream = new FileOutputStream(destination)) {
+            byte[] buffer = new byte[DeezerDecryptor.STRIPE_SIZE * 16];
+            int read;
+            while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * @return Size of the decrypted track
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Reads decrypted data at position, reads whole covered stripes from disk.
+     * Doesn't change any shared state, so it can be used from multiple threads.
+     * @param position Position in the decrypted track
+     * @param b Destination buffer
+     * @param off Offset in destination
+     * @param len Maximum number of bytes to read
+     * @return Number of bytes read, -1 at end of track
+     * @throws IOException If an I/O error occurs
+     */
+    int read(long position, byte[] b, int off, int len) throws IOException {
+        if (position >= size) return -1;
+        len = (int) Math.min(len, size - position);
+        byte[] stripe = new byte[DeezerDecryptor.STRIPE_SIZE];
+        int total = 0;
+        while (total < len) {
+            long stripeIndex = (position + total) / DeezerDecryptor.STRIPE_SIZE;
+            int skip = (int) ((position + total) % DeezerDecryptor.STRIPE_SIZE);
+            int stripeLength = readStripe(stripeIndex, stripe);
+            int n = Math.min(len - total, stripeLength - skip);
+            if (n <= 0) break;
+            System.arraycopy(stripe, skip, b, off + total, n);
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Opens stream of decrypted data between start and end (inclusive), file has to stay open while reading.
+     * @param start First byte
+     * @param end Last byte, -1 = end of track
+     * @return Decrypting stream, reuses one stripe buffer
+     */
+    InputStream openStream(long start, long end) {
+        final long last = (end == -1 || end >= size) ? size - 1 : end;
+        return new InputStream() {
+            final byte[] stripe = new byte[DeezerDecryptor.STRIPE_SIZE];
+            long position = start;
+            long stripeIndex = -1;
+            int stripeLength = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position > last) return -1;
+                long index = position / DeezerDecryptor.STRIPE_SIZE;
+                if (index != stripeIndex) {
+                    stripeLength = readStripe(index, stripe);
+                    stripeIndex = index;
+                }
+                int skip = (int) (position % DeezerDecryptor.STRIPE_SIZE);
+                int n = (int) Math.min(Math.min(len, stripeLength - skip), last - position + 1);
+                if (n <= 0) return -1;
+                System.arraycopy(stripe, skip, b, off, n);
+                position += n;
+                return n;
+            }
+        };
+    }
+
+    //Read and decrypt single stripe, returns its length (shorter only for last stripe)
+    private int readStripe(long index, byte[] stripe) throws IOException {
+        long position = dataOffset + index * DeezerDecryptor.STRIPE_SIZE;
+        ByteBuffer buffer = ByteBuffer.wrap(stripe);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read == -1) break;
+        }
+        int length = buffer.position();
+        if (length == DeezerDecryptor.STRIPE_SIZE && (index % 3) == 0) {
+            decryptor.decryptStripe(stripe, 0);
+        }
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
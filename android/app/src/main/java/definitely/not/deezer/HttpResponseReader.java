@@ -0,0 +1,70 @@
+package definitely.not.deezer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads bodies of Deezer API responses as text, gzip compressed when the server supports it.
+ * The body is copied as bytes into a per thread buffer and decoded once, no line splitting or per line strings.
+ */
+public class HttpResponseReader {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    //Bigger buffers aren't kept for the next response
+    private static final int MAX_KEPT_SIZE = 1024 * 1024;
+
+    //Exposes the array, so the body can be decoded without a copy
+    private static class Buffer extends ByteArrayOutputStream {
+        final byte[] chunk = new byte[CHUNK_SIZE];
+
+        Buffer() {
+            super(64 * 1024);
+        }
+
+        String decode() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    /**
+     * Ask for compressed response, has to be set before connecting.
+     * Setting it disables transparent decompression of the platform, read() decodes instead.
+     */
+    static void acceptGzip(HttpURLConnection connection) {
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+    }
+
+    /**
+     * Read whole response body.
+     * @param connection Connection with response
+     * @return Body as UTF-8 text
+     * @throws IOException If the request failed
+     */
+    static String read(HttpURLConnection connection) throws IOException {
+        InputStream inputStream = connection.getInputStream();
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+            inputStream = new GZIPInputStream(inputStream, CHUNK_SIZE);
+        Buffer buffer = buffers.get();
+        try (InputStream in = inputStream) {
+            int read;
+            while ((read = in.read(buffer.chunk)) != -1)
+                buffer.write(buffer.chunk, 0, read);
+            return buffer.decode();
+        } finally {
+            if (buffer.size() > MAX_KEPT_SIZE)
+                buffers.remove();
+            else
+                buffer.reset();
+        }
+    }
+}
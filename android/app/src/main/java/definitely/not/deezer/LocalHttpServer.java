@@ -0,0 +1,554 @@
+package definitely.not.deezer;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal HTTP/1.1 server for local playback.
+ * One selector thread accepts connections and waits on idle keep-alive connections,
+ * requests are handled by a small fixed worker pool, so thread count stays flat with many connections.
+ * Long bodies (audio) are sent by a separate pool, a paused player holds a sender, never a worker,
+ * so probes, seeks and /metrics are still served while tracks are playing.
+ * Response bodies are written through a direct buffer per thread, file bodies with transferTo.
+ * Responses are written non-blocking. Paused players stop reading, so only clients that closed the connection
+ * (write fails) or didn't read anything for WRITE_TIMEOUT are dropped.
+ */
+public class LocalHttpServer {
+    private static final String TAG = "LocalHttpServer";
+    static final String MIME_PLAINTEXT = "text/plain";
+
+    private static final int WORKERS = 4;
+    //Requests waiting for worker, more are rejected with 503
+    private static final int QUEUE_SIZE = 32;
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    //Idle keep-alive connections are closed after
+    private static final long IDLE_TIMEOUT = 30 * 1000;
+    //Request has to be received in
+    private static final int READ_TIMEOUT = 10 * 1000;
+    //Client has to accept some of the response in, long enough for a paused player
+    private static final long WRITE_TIMEOUT = 10 * 60 * 1000;
+    //Bodies up to this size are sent by the worker
+    private static final long SMALL_BODY = 64 * 1024;
+    //Concurrent long bodies, more are sent by the worker itself
+    private static final int MAX_SENDERS = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final Handler handler;
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor senders;
+    //Connections returning from workers to selector
+    private final Queue<SocketChannel> idle = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+    private final ThreadLocal<byte[]> chunks = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running = false;
+
+    /**
+     * Serves requests.
+     */
+    interface Handler {
+        Response serve(Request request);
+    }
+
+    LocalHttpServer(String host, int port, Handler handler) {
+        this.host = host;
+        this.port = port;
+        this.handler = handler;
+        workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE));
+        workers.allowCoreThreadTimeOut(true);
+        senders = new ThreadPoolExecutor(0, MAX_SENDERS, 60, TimeUnit.SECONDS, new SynchronousQueue<>());
+    }
+
+    void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(host, port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "LocalHttpServer");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * @return Number of open client connections, idle or being served
+     */
+    int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * @return Number of requests being handled or sent
+     */
+    int getActiveRequests() {
+        return workers.getActiveCount() + senders.getActiveCount();
+    }
+
+    void stop() {
+        running = false;
+        if (selector != null)
+            selector.wakeup();
+        workers.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select(IDLE_TIMEOUT / 2);
+                long now = System.currentTimeMillis();
+
+                //Connections back from workers
+                SocketChannel returned;
+                while ((returned = idle.poll()) != null) {
+                    try {
+                        returned.configureBlocking(false);
+                        returned.register(selector, SelectionKey.OP_READ, now);
+                    } catch (IOException | CancelledKeyException e) {
+                        closeConnection(returned);
+                    }
+                }
+
+                //Failure of one connection only closes that one
+                List<SocketChannel> ready = new ArrayList<>();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept(now);
+                        } else if (key.isReadable()) {
+                            key.cancel();
+                            ready.add((SocketChannel) key.channel());
+                        }
+                    } catch (CancelledKeyException e) {
+                        if (key.channel() instanceof SocketChannel)
+                            closeConnection((SocketChannel) key.channel());
+                    }
+                }
+
+                //Close idle connections
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Long && now - (Long) key.attachment() > IDLE_TIMEOUT) {
+                        key.cancel();
+                        closeConnection((SocketChannel) key.channel());
+                    }
+                }
+
+                //Cancelled keys have to be flushed before switching to blocking mode
+                if (!ready.isEmpty())
+                    selector.selectNow();
+                for (SocketChannel channel : ready)
+                    dispatch(channel);
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.e(TAG, "Selector failed: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.channel() instanceof SocketChannel)
+                    closeConnection((SocketChannel) key.channel());
+            }
+            closeQuietly(selector);
+            closeQuietly(serverChannel);
+            SocketChannel channel;
+            while ((channel = idle.poll()) != null)
+                closeConnection(channel);
+        }
+    }
+
+    private void accept(long now) {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+        } catch (IOException e) {
+            Log.w(TAG, "Accept failed: " + e);
+            return;
+        }
+        if (channel == null) return;
+        openConnections.incrementAndGet();
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, now);
+        } catch (IOException e) {
+            closeConnection(channel);
+        }
+    }
+
+    private void dispatch(SocketChannel channel) {
+        try {
+            channel.configureBlocking(true);
+            workers.execute(() -> handleConnection(channel));
+        } catch (RejectedExecutionException e) {
+            //Backpressure, player retries
+            Log.w(TAG, "Too many requests, rejecting");
+            try {
+                writeResponse(channel, newFixedLengthResponse(Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Server busy"), false, false);
+            } catch (IOException ignored) {}
+            closeConnection(channel);
+        } catch (IOException e) {
+            closeConnection(channel);
+        }
+    }
+
+    //Handle single request, return keep-alive connection to selector
+    private void handleConnection(SocketChannel channel) {
+        Request request;
+        try {
+            channel.socket().setSoTimeout(READ_TIMEOUT);
+            request = readRequest(channel);
+            if (request == null) {
+                closeConnection(channel);
+                return;
+            }
+            //Request is read, response is written non-blocking with timeout
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            closeConnection(channel);
+            return;
+        }
+
+        Response response;
+        if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+            response = newFixedLengthResponse(Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "Only GET request supported!");
+        } else {
+            try {
+                response = handler.serve(request);
+            } catch (Exception e) {
+                Log.e(TAG, "Handler failed: " + e);
+                response = newFixedLengthResponse(Status.INTERNAL_ERROR, MIME_PLAINTEXT, "An error occurred while serving the request.");
+            }
+        }
+        boolean headOnly = "HEAD".equals(request.method);
+        //Long body, free the worker
+        if (!headOnly && response.length > SMALL_BODY) {
+            try {
+                final Response body = response;
+                senders.execute(() -> send(channel, body, request.keepAlive, false));
+                return;
+            } catch (RejectedExecutionException ignored) {}
+        }
+        send(channel, response, request.keepAlive, headOnly);
+    }
+
+    //Write response, return keep-alive connection to selector
+    private void send(SocketChannel channel, Response response, boolean keepAlive, boolean headOnly) {
+        try {
+            writeResponse(channel, response, keepAlive, headOnly);
+        } catch (IOException e) {
+            //Player closed connection (seek, skip)
+            keepAlive = false;
+        } finally {
+            response.close();
+        }
+
+        if (keepAlive && running) {
+            idle.add(channel);
+            selector.wakeup();
+        } else {
+            closeConnection(channel);
+        }
+    }
+
+    //Read request line & headers, null if connection was closed
+    //Only GET without body is supported and players don't pipeline, so anything after headers is ignored
+    private Request readRequest(SocketChannel channel) throws IOException {
+        InputStream inputStream = channel.socket().getInputStream();
+        byte[] head = new byte[MAX_HEADER_SIZE];
+        int size = 0;
+        int headEnd = -1;
+        while (headEnd == -1) {
+            if (size == head.length) throw new IOException("Header too large");
+            int read = inputStream.read(head, size, head.length - size);
+            if (read == -1) {
+                if (size == 0) return null;
+                throw new IOException("Incomplete request");
+            }
+            //Look for empty line, from slightly before new data
+            for (int i = Math.max(0, size - 3); i + 3 < size + read; i++) {
+                if (head[i] == '\r' && head[i + 1] == '\n' && head[i + 2] == '\r' && head[i + 3] == '\n') {
+                    headEnd = i;
+                    break;
+                }
+            }
+            size += read;
+        }
+
+        String[] lines = new String(head, 0, headEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 3) throw new IOException("Invalid request line");
+        Request request = new Request(requestLine[0], requestLine[1]);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) continue;
+            request.headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+        String connection = request.headers.get("connection");
+        request.keepAlive = requestLine[2].equals("HTTP/1.1") ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+        return request;
+    }
+
+    private void writeResponse(SocketChannel channel, Response response, boolean keepAlive, boolean headOnly) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.status.code).append(' ').append(response.status.description).append("\r\n");
+        head.append("Content-Type: ").append(response.mimeType).append("\r\n");
+        head.append("Content-Length: ").append(response.length).append("\r\n");
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet())
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        head.append("\r\n");
+        try (WriteWaiter waiter = new WriteWaiter(channel)) {
+            writeFully(channel, ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)), waiter);
+            if (headOnly) return;
+
+            //File, zero copy
+            if (response.file != null) {
+                long position = response.filePosition;
+                long end = position + response.length;
+                while (position < end) {
+                    long sent = response.file.transferTo(position, end - position, channel);
+                    if (sent < 0 || (sent == 0 && position >= response.file.size()))
+                        throw new IOException("File ended early");
+                    //Socket buffer full
+                    if (sent == 0) {
+                        waiter.await();
+                        continue;
+                    }
+                    position += sent;
+                    if (response.sentBytes != null) response.sentBytes.addAndGet(sent);
+                }
+                return;
+            }
+
+            //Stream through direct buffer
+            ByteBuffer buffer = buffers.get();
+            byte[] chunk = chunks.get();
+            long pending = response.length;
+            while (pending > 0) {
+                int read = response.data.read(chunk, 0, (int) Math.min(chunk.length, pending));
+                if (read == -1) throw new IOException("Response body ended early");
+                buffer.clear();
+                buffer.put(chunk, 0, read);
+                buffer.flip();
+                writeFully(channel, buffer, waiter);
+                pending -= read;
+                if (response.sentBytes != null) response.sentBytes.addAndGet(read);
+            }
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer, WriteWaiter waiter) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0)
+                waiter.await();
+        }
+    }
+
+    /**
+     * Waits until non-blocking channel is writable, selector is opened only once a write would block.
+     * Closing deregisters the channel, so it can be switched to blocking mode again.
+     */
+    private static class WriteWaiter implements Closeable {
+        private final SocketChannel channel;
+        private Selector selector;
+
+        WriteWaiter(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void await() throws IOException {
+            if (selector == null) {
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_WRITE);
+            }
+            if (selector.select(WRITE_TIMEOUT) == 0)
+                throw new IOException("Write timed out");
+            selector.selectedKeys().clear();
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(selector);
+        }
+    }
+
+    private void closeConnection(SocketChannel channel) {
+        if (channel.isOpen())
+            openConnections.decrementAndGet();
+        closeQuietly(channel);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) closeable.close();
+        } catch (IOException ignored) {}
+    }
+
+    static Response newFixedLengthResponse(Status status, String mimeType, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return new Response(status, mimeType, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    static Response newFixedLengthResponse(Status status, String mimeType, InputStream data, long length) {
+        return new Response(status, mimeType, data, length);
+    }
+
+    /**
+     * Response with body sent directly from file.
+     * @param onClose Called once the response was sent
+     */
+    static Response newFileResponse(Status status, String mimeType, FileChannel file, long position, long length, Closeable onClose) {
+        Response response = new Response(status, mimeType, null, length);
+        response.file = file;
+        response.filePosition = position;
+        response.onClose = onClose;
+        return response;
+    }
+
+    enum Status {
+        OK(200, "OK"),
+        PARTIAL_CONTENT(206, "Partial Content"),
+        BAD_REQUEST(400, "Bad Request"),
+        NOT_FOUND(404, "Not Found"),
+        METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
+        RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"),
+        INTERNAL_ERROR(500, "Internal Server Error"),
+        SERVICE_UNAVAILABLE(503, "Service Unavailable");
+
+        final int code;
+        final String description;
+
+        Status(int code, String description) {
+            this.code = code;
+            this.description = description;
+        }
+    }
+
+    static class Request {
+        final String method;
+        final String path;
+        //Lowercase names
+        final Map<String, String> headers = new HashMap<>();
+        final Map<String, List<String>> parameters = new HashMap<>();
+        boolean keepAlive;
+
+        private Request(String method, String uri) {
+            this.method = method;
+            int query = uri.indexOf('?');
+            path = (query == -1) ? uri : uri.substring(0, query);
+            if (query == -1) return;
+            for (String pair : uri.substring(query + 1).split("&")) {
+                if (pair.isEmpty()) continue;
+                int eq = pair.indexOf('=');
+                String name = decode((eq == -1) ? pair : pair.substring(0, eq));
+                String value = (eq == -1) ? "" : decode(pair.substring(eq + 1));
+                List<String> values = parameters.get(name);
+                if (values == null) {
+                    values = new ArrayList<>();
+                    parameters.put(name, values);
+                }
+                values.add(value);
+            }
+        }
+
+        private static String decode(String s) {
+            try {
+                return URLDecoder.decode(s, "UTF-8");
+            } catch (Exception e) {
+                return s;
+            }
+        }
+
+        Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        Map<String, List<String>> getParameters() {
+            return parameters;
+        }
+    }
+
+    static class Response implements Closeable {
+        final Status status;
+        final String mimeType;
+        final long length;
+        final Map<String, String> headers = new HashMap<>();
+        private final InputStream data;
+        private FileChannel file;
+        private long filePosition;
+        private Closeable onClose;
+        private AtomicLong sentBytes;
+
+        private Response(Status status, String mimeType, InputStream data, long length) {
+            this.status = status;
+            this.mimeType = mimeType;
+            this.data = data;
+            this.length = length;
+        }
+
+        void addHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        /**
+         * @param counter Incremented by body bytes as they are sent
+         */
+        void countBytes(AtomicLong counter) {
+            sentBytes = counter;
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(data);
+            closeQuietly(onClose);
+        }
+    }
+}
@@ -23,10 +23,15 @@ import androidx.annotation.Nullable;
 
 import com.ryanheise.audioservice.AudioServiceActivity;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import io.flutter.embedding.engine.FlutterEngine;
 import io.flutter.plugin.common.EventChannel;
@@ -50,6 +55,10 @@ public class MainActivity extends AudioServiceActivity {
 
     SQLiteDatabase db;
     StreamServer streamServer;
+    //Bytes per second for downloads set by stream server, 0 = unlimited
+    long downloadLimit = 0;
+    //Tracks saved offline by stream server while UI wasn't listening
+    final List<String> pendingStreamSaved = new ArrayList<>();
 
     String intentPreload;
 
@@ -77,7 +86,7 @@ public class MainActivity extends AudioServiceActivity {
                         getDownloads(result);
                         break;
                     case "updateSettings":
-                        updateSettings(call.argument("json").toString(), result);
+                        updateSettings(call.argument("json").toString(), call.argument("offlineQuality"), result);
                         break;
                     case "loadDownloads":
                         loadDownloads(result);
@@ -104,11 +113,23 @@ public class MainActivity extends AudioServiceActivity {
                         getArch(result);
                         break;
                     case "startServer":
-                        startServer(call.argument("arl"), result);
+                        startServer(call.argument("arl"), call.argument("streamCacheSize") != null ? (int) call.argument("streamCacheSize") : 0, Boolean.TRUE.equals(call.argument("streamToOffline")), call.argument("offlineQuality"), result);
                         break;
                     case "getStreamInfo":
                         getStreamInfo(call.argument("id").toString(), result);
                         break;
+                    case "prefetchStreamUrls":
+                        prefetchStreamUrls(call.argument("tracks"), result);
+                        break;
+                    case "getStreamMetrics":
+                        getStreamMetrics(result);
+                        break;
+                    case "getSeekOffset":
+                        getSeekOffset(call.argument("id").toString(), ((Number) call.argument("ms")).longValue(), result);
+                        break;
+                    case "exportOffline":
+                        exportOffline(call.argument("path"), call.argument("destination"), result);
+                        break;
                     case "kill":
                         killServices(result);
                         break;
@@ -140,6 +161,11 @@ public class MainActivity extends AudioServiceActivity {
             public void onListen(Object arguments, EventChannel.EventSink events) {
                 Log.i(TAG, "Event Sink Listening");
                 eventSink = events;
+                //Saved while UI wasn't listening
+                List<String> saved = new ArrayList<>(pendingStreamSaved);
+                pendingStreamSaved.clear();
+                for (String trackId : saved)
+                    onStreamSaved(trackId);
                 sendMessageToDownloadService(DownloadService.SERVICE_REGISTER_CLIENT, null);
                 sendMessageToAcrService(AcrCloudHandler.MSG_ACR_STATE, null);
             }
@@ -222,10 +248,22 @@ public class MainActivity extends AudioServiceActivity {
         result.success(downloadsList);
     }
 
-    private void updateSettings(String json, MethodChannel.Result result) {
+    private void updateSettings(String json, Integer offlineQuality, MethodChannel.Result result) {
         Bundle bundle = new Bundle();
         bundle.putString("json", json);
         sendMessageToDownloadService(DownloadService.SERVICE_SETTINGS_UPDATE, bundle);
+        //Stream cache size in MB
+        if (streamServer != null) {
+            try {
+                JSONObject settings = new JSONObject(json);
+                streamServer.setCacheSize(settings.optInt("streamCacheSize", 0) * 1024L * 1024L);
+                streamServer.setStreamToOffline(settings.optBoolean("streamToOffline", false));
+                if (offlineQuality != null)
+                    streamServer.setOfflineQuality(offlineQuality);
+            } catch (JSONException e) {
+                Log.e(TAG, "Error parsing settings for stream server", e);
+            }
+        }
         result.success(null);
     }
 
@@ -276,15 +314,45 @@ public class MainActivity extends AudioServiceActivity {
 
     // --- Stream Server Methods ---
 
-    private void startServer(String arl, MethodChannel.Result result) {
+    private void startServer(String arl, int cacheSize, boolean streamToOffline, Integer offlineQuality, MethodChannel.Result result) {
         if (streamServer == null) {
             String offlinePath = getExternalFilesDir("offline").getAbsolutePath();
-            streamServer = new StreamServer(arl, offlinePath);
+            //Cache size in MB
+            Deezer deezer = Deezer.getInstance(this);
+            deezer.arl = arl;
+            streamServer = new StreamServer(deezer, offlinePath, new File(getCacheDir(), "stream"), cacheSize * 1024L * 1024L, this::setDownloadLimit, this::onStreamSaved);
+            streamServer.setStreamToOffline(streamToOffline);
+            if (offlineQuality != null)
+                streamServer.setOfflineQuality(offlineQuality);
             streamServer.start();
         }
         result.success(null);
     }
 
+    //Called from stream server, playback buffer is low
+    private void setDownloadLimit(long limit) {
+        new Handler(Looper.getMainLooper()).post(() -> {
+            downloadLimit = limit;
+            Bundle bundle = new Bundle();
+            bundle.putLong("limit", limit);
+            sendMessageToDownloadService(DownloadService.SERVICE_BANDWIDTH_LIMIT, bundle);
+        });
+    }
+
+    //Called from stream server, streamed track was saved offline, UI adds it to offline DB
+    private void onStreamSaved(String trackId) {
+        new Handler(Looper.getMainLooper()).post(() -> {
+            if (eventSink == null) {
+                pendingStreamSaved.add(trackId);
+                return;
+            }
+            HashMap<String, Object> eventData = new HashMap<>();
+            eventData.put("eventType", "streamSaved");
+            eventData.put("trackId", trackId);
+            eventSink.success(eventData);
+        });
+    }
+
     private void getStreamInfo(String id, MethodChannel.Result result) {
         if (streamServer == null) {
             result.success(null);
@@ -294,6 +362,54 @@ public class MainActivity extends AudioServiceActivity {
         result.success(info != null ? info.toJSON() : null);
     }
 
+    //Upcoming streams, resolved in batches
+    private void prefetchStreamUrls(List<Map<String, String>> tracks, MethodChannel.Result result) {
+        if (streamServer != null && tracks != null)
+            streamServer.setQueue(tracks);
+        result.success(null);
+    }
+
+    //Stream server performance counters
+    private void getStreamMetrics(MethodChannel.Result result) {
+        if (streamServer == null) {
+            result.success(null);
+            return;
+        }
+        result.success(streamServer.getMetrics().toJSON());
+    }
+
+    //Byte offset for time in streamed/offline track, null if track wasn't served, builds seek index if needed
+    private void getSeekOffset(String id, long ms, MethodChannel.Result result) {
+        if (streamServer == null) {
+            result.success(null);
+            return;
+        }
+        Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            try {
+                SeekIndex seekIndex = streamServer.getSeekIndex(id);
+                handler.post(() -> result.success(seekIndex != null ? seekIndex.toJSON(ms) : null));
+            } catch (Exception e) {
+                Log.w(TAG, "Failed building seek index: " + e.getMessage());
+                handler.post(() -> result.success(null));
+            }
+        }).start();
+    }
+
+    //Copy offline track out of app storage, decrypts tracks encrypted at rest
+    private void exportOffline(String path, String destination, MethodChannel.Result result) {
+        Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            try {
+                EncryptedTrackFile.export(new File(path), new File(destination));
+                handler.post(() -> result.success(true));
+            } catch (Exception e) {
+                Log.e(TAG, "Error exporting offline track: " + path, e);
+                handler.post(() -> result.error("NATIVE_ERROR", "Error exporting offline track", e.getMessage()));
+            }
+        }).start();
+    }
+
     private void killServices(MethodChannel.Result result) {
         Log.d(TAG, "Kill command received");
         stopDownloadService();
@@ -379,6 +495,9 @@ public class MainActivity extends AudioServiceActivity {
             Log.i(TAG, "DownloadService Bound!");
             downloadServiceMessenger = new Messenger(iBinder);
             downloadServiceBound = true;
+            //Playback started before the service was bound
+            if (downloadLimit != 0)
+                setDownloadLimit(downloadLimit);
         }
 
         @Override
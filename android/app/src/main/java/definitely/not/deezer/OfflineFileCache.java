@@ -0,0 +1,195 @@
+package definitely.not.deezer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open offline files served by StreamServer.
+ * Recently used files stay open with their format and size, so range requests (seeks) don't open and sniff the file again.
+ * Handles are closed once evicted and no longer read from.
+ */
+public class OfflineFileCache {
+    private static final int MAX_OPEN = 4;
+
+    //Access ordered, eldest first
+    private final LinkedHashMap<String, OfflineFile> files = new LinkedHashMap<>(MAX_OPEN, 0.75f, true);
+    //Acquires of already open files, for metrics
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Get open file, has to be released (or stream from it closed).
+     * @param file Offline file
+     * @return Opened file
+     * @throws IOException If the file can't be opened
+     */
+    synchronized OfflineFile acquire(File file) throws IOException {
+        String path = file.getPath();
+        long modified = file.lastModified();
+        OfflineFile offlineFile = files.get(path);
+        //Redownloaded or deleted
+        if (offlineFile != null && offlineFile.modified != modified) {
+            files.remove(path);
+            offlineFile.retire();
+            offlineFile = null;
+        }
+        if (offlineFile == null) {
+            misses.incrementAndGet();
+            offlineFile = new OfflineFile(file, modified);
+            files.put(path, offlineFile);
+            trim();
+        } else {
+            hits.incrementAndGet();
+        }
+        offlineFile.users++;
+        return offlineFile;
+    }
+
+    /**
+     * @param offlineFile File returned by acquire
+     */
+    synchronized void release(OfflineFile offlineFile) {
+        offlineFile.users--;
+        if (offlineFile.retired && offlineFile.users == 0)
+            offlineFile.close();
+    }
+
+    /**
+     * Close all files, in use ones once released.
+     */
+    synchronized void clear() {
+        List<OfflineFile> all = new ArrayList<>(files.values());
+        files.clear();
+        for (OfflineFile offlineFile : all)
+            offlineFile.retire();
+    }
+
+    private void trim() {
+        Iterator<OfflineFile> iterator = files.values().iterator();
+        while (files.size() > MAX_OPEN && iterator.hasNext()) {
+            OfflineFile offlineFile = iterator.next();
+            iterator.remove();
+            offlineFile.retire();
+        }
+    }
+
+    /**
+     * Opened offline file, plain or encrypted at rest.
+     */
+    class OfflineFile {
+        final boolean flac;
+        //Size of decrypted track
+        final long size;
+        private final long modified;
+        private final RandomAccessFile file;
+        private final EncryptedTrackFile encryptedFile;
+        private int users = 0;
+        private boolean retired = false;
+
+        private OfflineFile(File path, long modified) throws IOException {
+            this.modified = modified;
+            if (EncryptedTrackFile.isEncrypted(path)) {
+                file = null;
+                encryptedFile = new EncryptedTrackFile(path);
+                size = encryptedFile.size();
+            } else {
+                file = new RandomAccessFile(path, "r");
+                encryptedFile = null;
+                size = file.length();
+            }
+            //Read header
+            try {
+                byte[] header = new byte[4];
+                flac = read(0, header, 0, 4) == 4 && new String(header).equals("fLaC");
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return Channel of plain file (for transferTo), null if encrypted
+         */
+        FileChannel channel() {
+            return (file != null) ? file.getChannel() : null;
+        }
+
+        /**
+         * Positional read, doesn't change any shared state.
+         * @return Number of bytes read, -1 at end of file
+         */
+        int read(long position, byte[] b, int off, int len) throws IOException {
+            if (encryptedFile != null)
+                return encryptedFile.read(position, b, off, len);
+            if (position >= size) return -1;
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, size - position));
+            FileChannel channel = file.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position() - off) == -1) break;
+            }
+            int read = buffer.position() - off;
+            return (read == 0) ? -1 : read;
+        }
+
+        /**
+         * Stream of data between start and end (inclusive), closing it releases the file.
+         * @param start First byte
+         * @param end Last byte, -1 = end of file
+         * @return Stream
+         */
+        InputStream openStream(long start, long end) {
+            final long last = (end == -1 || end >= size) ? size - 1 : end;
+            final InputStream decrypted = (encryptedFile != null) ? encryptedFile.openStream(start, last) : null;
+            return new InputStream() {
+                long position = start;
+                boolean closed = false;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xFF);
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (decrypted != null)
+                        return decrypted.read(b, off, len);
+                    if (position > last) return -1;
+                    int read = OfflineFile.this.read(position, b, off, (int) Math.min(len, last - position + 1));
+                    if (read > 0) position += read;
+                    return read;
+                }
+
+                @Override
+                public void close() {
+                    if (closed) return;
+                    closed = true;
+                    release(OfflineFile.this);
+                }
+            };
+        }
+
+        //Close now if unused, otherwise once released
+        private void retire() {
+            retired = true;
+            if (users == 0)
+                close();
+        }
+
+        private void close() {
+            try {
+                if (encryptedFile != null) encryptedFile.close();
+                if (file != null) file.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package definitely.not.deezer;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stream to offline: copies decrypted stream responses of whole tracks into a temp file in the offline directory.
+ * Once the player read the track to the end and the file looks valid, it's renamed to offlinePath/trackId,
+ * so the next play is served by offlineStream without network or decryption. Saved tracks are reported
+ * to the listener, which adds them to the offline database like finished downloads (can be removed from the UI).
+ */
+public class OfflineTee {
+    private static final String TAG = "OfflineTee";
+    //Temp file: .trackId.stream, hidden from offline lookups
+    private static final String TEMP_SUFFIX = ".stream";
+    //Free space to keep after the copy
+    private static final long MIN_FREE_SPACE = 256 * 1024 * 1024;
+
+    /**
+     * Notified about tracks saved offline.
+     */
+    interface Listener {
+        void onSaved(String trackId);
+    }
+
+    private final File dir;
+    private final Listener listener;
+    private volatile boolean enabled = false;
+    //Deezer quality of offline downloads, other streams aren't saved
+    private volatile int quality = 9;
+    //Track IDs being copied
+    private final Set<String> active = new HashSet<>();
+
+    OfflineTee(String offlinePath, Listener listener) {
+        dir = new File(offlinePath);
+        this.listener = listener;
+    }
+
+    /**
+     * Remove temp files left by copies interrupted by process death.
+     */
+    void sweep() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(".") && name.endsWith(TEMP_SUFFIX));
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            String trackId = name.substring(1, name.length() - TEMP_SUFFIX.length());
+            synchronized (active) {
+                if (!active.contains(trackId) && file.delete())
+                    Log.d(TAG, "Removed stale temp file " + name);
+            }
+        }
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void setQuality(int quality) {
+        this.quality = quality;
+    }
+
+    /**
+     * Copy response body into offline directory, if enabled, in offline quality and not offline yet.
+     * A copy in other quality would stand in for the download in offline quality.
+     * @param trackId Track ID used for offline file (not stream track ID)
+     * @param inputStream Decrypted body of whole track
+     * @param size Track size
+     * @param quality Deezer quality of the stream (after fallback)
+     * @return Copying stream, or inputStream if it won't be copied
+     */
+    InputStream wrap(String trackId, InputStream inputStream, long size, int quality) {
+        if (!enabled || size <= 0 || quality != this.quality) return inputStream;
+        boolean flac = quality == 9;
+        //Used as file name
+        if (trackId.isEmpty() || trackId.startsWith(".") || trackId.indexOf(File.separatorChar) != -1)
+            return inputStream;
+        File target = new File(dir, trackId);
+        if (target.exists() || dir.getUsableSpace() < size + MIN_FREE_SPACE)
+            return inputStream;
+        synchronized (active) {
+            if (!active.add(trackId))
+                return inputStream;
+        }
+
+        File temp = new File(dir, "." + trackId + TEMP_SUFFIX);
+        OutputStream outputStream;
+        try {
+            outputStream = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed creating temp file: " + e.getMessage());
+            finish(trackId);
+            return inputStream;
+        }
+        return new TeeInputStream(inputStream, outputStream, trackId, temp, target, size, flac);
+    }
+
+    private void finish(String trackId) {
+        synchronized (active) {
+            active.remove(trackId);
+        }
+    }
+
+    private class TeeInputStream extends FilterInputStream {
+        private final String trackId;
+        private final File temp;
+        private final File target;
+        private final long size;
+        private final boolean flac;
+        //null once the copy failed
+        private OutputStream outputStream;
+        private long written = 0;
+        private boolean closed = false;
+
+        TeeInputStream(InputStream in, OutputStream outputStream, String trackId, File temp, File target, long size, boolean flac) {
+            super(in);
+            this.outputStream = outputStream;
+            this.trackId = trackId;
+            this.temp = temp;
+            this.target = target;
+            this.size = size;
+            this.flac = flac;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0 && outputStream != null) {
+                //Playback doesn't depend on the copy
+                try {
+                    outputStream.write(b, off, read);
+                    written += read;
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed writing " + trackId + ": " + e.getMessage());
+                    abort();
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            //Skipped bytes would be missing from the copy
+            abort();
+            return super.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                if (outputStream != null) {
+                    try {
+                        outputStream.close();
+                        //Player stopped early (seek, skip)
+                        if (written == size && temp.length() == size && verify() && !target.exists() && temp.renameTo(target)) {
+                            Log.d(TAG, "Saved streamed track " + trackId + " offline");
+                            listener.onSaved(trackId);
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed saving " + trackId + ": " + e.getMessage());
+                    }
+                    outputStream = null;
+                }
+                temp.delete();
+                finish(trackId);
+            }
+        }
+
+        private void abort() {
+            if (outputStream == null) return;
+            try {
+                outputStream.close();
+            } catch (IOException ignored) {}
+            outputStream = null;
+            temp.delete();
+        }
+
+        //Check copied file starts as the served format
+        private boolean verify() throws IOException {
+            byte[] header = new byte[4];
+            try (InputStream inputStream = new FileInputStream(temp)) {
+                int read = 0;
+                while (read < header.length) {
+                    int n = inputStream.read(header, read, header.length - read);
+                    if (n == -1) return false;
+                    read += n;
+                }
+            }
+            if (flac)
+                return new String(header).equals("fLaC");
+            //ID3 tag or MPEG frame sync
+            return new String(header, 0, 3).equals("ID3") || ((header[0] & 0xFF) == 0xFF && (header[1] & 0xE0) == 0xE0);
+        }
+    }
+}
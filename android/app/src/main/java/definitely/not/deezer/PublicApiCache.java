@@ -0,0 +1,229 @@
+package definitely.not.deezer;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Responses of api.deezer.com in memory and on disk, with TTL per method.
+ * Concurrent lookups of the same object share one request, so downloading an album fetches its album JSON once.
+ * Error responses aren't cached.
+ */
+public class PublicApiCache {
+    private static final String TAG = "PublicApiCache";
+    private static final int MEMORY_SIZE = 256;
+    //Files older than the longest TTL are removed when the directory is set
+    private static final long MAX_TTL = 7L * 24 * 60 * 60 * 1000;
+    //Waiting for shared request, longer than connect timeout
+    private static final long WAIT_TIMEOUT = 30 * 1000;
+
+    /**
+     * Fetches response from network.
+     */
+    interface Loader {
+        String load(String method, String param) throws Exception;
+    }
+
+    private final Loader loader;
+    //Disk store, null = memory only
+    private volatile File dir;
+    //Raw JSON by key
+    private final LinkedHashMap<String, Cached> memory = new LinkedHashMap<String, Cached>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > MEMORY_SIZE;
+        }
+    };
+    //Requests in progress by key
+    private final HashMap<String, Lookup> inflight = new HashMap<>();
+
+    private static class Cached {
+        final String json;
+        final long expires;
+
+        Cached(String json, long expires) {
+            this.json = json;
+            this.expires = expires;
+        }
+    }
+
+    //Result shared by concurrent callers
+    private static class Lookup {
+        final CountDownLatch done = new CountDownLatch(1);
+        String json;
+        Exception error;
+    }
+
+    PublicApiCache(Loader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Enable disk store, removes expired files.
+     * @param dir Directory for cached responses
+     */
+    void setDir(File dir) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed creating cache dir: " + dir);
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            long now = System.currentTimeMillis();
+            for (File file : files) {
+                if (now - file.lastModified() > MAX_TTL)
+                    file.delete();
+            }
+        }
+        this.dir = dir;
+    }
+
+    //How long response of method stays valid
+    private static long ttl(String method) {
+        switch (method) {
+            //Album tracklists & artwork barely change
+            case "album":
+                return MAX_TTL;
+            case "track":
+            case "episode":
+                return 24L * 60 * 60 * 1000;
+            default:
+                return 60L * 60 * 1000;
+        }
+    }
+
+    /**
+     * Get cached response or fetch it.
+     * @param method Public API method
+     * @param param Object ID
+     * @param language Content language, part of the key
+     * @return Parsed response, new object for every caller
+     * @throws Exception If the request failed
+     */
+    JSONObject get(String method, String param, String language) throws Exception {
+        String key = language + "_" + method + "_" + param;
+        long ttl = ttl(method);
+        Lookup lookup;
+        boolean load = false;
+        synchronized (this) {
+            Cached cached = memory.get(key);
+            if (cached != null && cached.expires > System.currentTimeMillis())
+                return new JSONObject(cached.json);
+            lookup = inflight.get(key);
+            if (lookup == null) {
+                lookup = new Lookup();
+                inflight.put(key, lookup);
+                load = true;
+            }
+        }
+
+        if (load) {
+            try {
+                Cached cached = readFile(key, ttl);
+                if (cached == null) {
+                    String json = loader.load(method, param);
+                    cached = new Cached(json, System.currentTimeMillis() + ttl);
+                    //Missing objects & quota errors come as 200 with error
+                    if (!new JSONObject(json).has("error"))
+                        writeFile(key, json);
+                    else
+                        cached = null;
+                    lookup.json = json;
+                } else {
+                    lookup.json = cached.json;
+                }
+                if (cached != null) {
+                    synchronized (this) {
+                        memory.put(key, cached);
+                    }
+                }
+            } catch (Exception e) {
+                lookup.error = e;
+            } finally {
+                synchronized (this) {
+                    inflight.remove(key);
+                }
+                lookup.done.countDown();
+            }
+        } else if (!lookup.done.await(WAIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            //Shared request stuck, don't hang with it
+            Log.w(TAG, "Shared request for " + key + " timed out, fetching directly");
+            return new JSONObject(loader.load(method, param));
+        }
+
+        if (lookup.error != null)
+            throw lookup.error;
+        return new JSONObject(lookup.json);
+    }
+
+    //File name safe form of key
+    private File file(File dir, String key) {
+        return new File(dir, key.replaceAll("[^A-Za-z0-9_-]", "_") + ".json");
+    }
+
+    //Unparsable file (truncated, disk error) is removed
+    private Cached readFile(String key, long ttl) {
+        File dir = this.dir;
+        if (dir == null) return null;
+        File file = file(dir, key);
+        long modified = file.lastModified();
+        if (modified == 0 || System.currentTimeMillis() - modified > ttl)
+            return null;
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = inputStream.read(data, read, data.length - read);
+                if (n == -1) return null;
+                read += n;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        String json = new String(data, StandardCharsets.UTF_8);
+        try {
+            new JSONObject(json);
+        } catch (Exception e) {
+            Log.w(TAG, "Corrupt cache file " + file.getName() + ", removing");
+            file.delete();
+            return null;
+        }
+        return new Cached(json, modified + ttl);
+    }
+
+    //Written to unique temp file first, readers and other processes never see partial file
+    private void writeFile(String key, String json) {
+        File dir = this.dir;
+        if (dir == null) return;
+        File file = file(dir, key);
+        File temp;
+        try {
+            temp = File.createTempFile("api", ".tmp", dir);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed writing " + key + ": " + e.getMessage());
+            return;
+        }
+        try (OutputStream outputStream = new FileOutputStream(temp)) {
+            outputStream.write(json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed writing " + key + ": " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file))
+            temp.delete();
+    }
+}
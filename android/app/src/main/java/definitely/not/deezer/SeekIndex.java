@@ -0,0 +1,312 @@
+package definitely.not.deezer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Maps time to byte offset in a track, so time seek needs a single range request.
+ * Built from FLAC STREAMINFO + SEEKTABLE, MP3 Xing/Info or VBRI table of contents, or constant bitrate math.
+ */
+public class SeekIndex {
+    //Header bytes parsed at once
+    private static final int PROBE_SIZE = 4096;
+    //VBRI entries are 1 to 4 bytes
+    private static final int MAX_VBRI_ENTRY_SIZE = 4;
+
+    private static final int[] MP3_BITRATES_V1 = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0};
+    private static final int[] MP3_BITRATES_V2 = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0};
+    private static final int[] MP3_SAMPLE_RATES = {44100, 48000, 32000, 0};
+
+    /**
+     * Random access to (decrypted) track data.
+     */
+    interface Reader {
+        /**
+         * @return Number of bytes read, -1 at end
+         */
+        int read(long position, byte[] b, int off, int len) throws IOException;
+    }
+
+    final long durationMs;
+    //Seek points, sorted by time
+    private final long[] times;
+    private final long[] offsets;
+    //FLAC seek points are frame boundaries, use the one before the target, otherwise interpolate
+    private final boolean exact;
+
+    private SeekIndex(long durationMs, long[] times, long[] offsets, boolean exact) {
+        this.durationMs = durationMs;
+        this.times = times;
+        this.offsets = offsets;
+        this.exact = exact;
+    }
+
+    /**
+     * Parse track headers.
+     * @param reader Track data
+     * @param size Track size
+     * @return Seek index
+     * @throws IOException If the format is unknown or headers are invalid
+     */
+    static SeekIndex build(Reader reader, long size) throws IOException {
+        long start = skipId3(reader);
+        byte[] magic = readFully(reader, start, 4);
+        if (magic[0] == 'f' && magic[1] == 'L' && magic[2] == 'a' && magic[3] == 'C')
+            return buildFlac(reader, start + 4, size);
+        return buildMp3(reader, start, size);
+    }
+
+    /**
+     * Reader serving small header reads from blocks, for sources where every read is a request.
+     * @param reader Source
+     * @param blockSize Bytes fetched at once
+     * @return Buffered reader, not thread safe
+     */
+    static Reader buffered(Reader reader, int blockSize) {
+        return new Reader() {
+            private final byte[] block = new byte[blockSize];
+            private long blockStart = -1;
+            private int blockLength = 0;
+
+            @Override
+            public int read(long position, byte[] b, int off, int len) throws IOException {
+                if (blockStart == -1 || position < blockStart || position >= blockStart + blockLength) {
+                    //Doesn't fit, read directly
+                    if (len >= blockSize)
+                        return reader.read(position, b, off, len);
+                    int read = readUpTo(reader, position, block, blockSize);
+                    if (read <= 0) return -1;
+                    blockStart = position;
+                    blockLength = read;
+                }
+                int n = (int) Math.min(len, blockStart + blockLength - position);
+                System.arraycopy(block, (int) (position - blockStart), b, off, n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * @param timeMs Time in track
+     * @return Byte offset to start reading from
+     */
+    long offset(long timeMs) {
+        timeMs = Math.max(0, Math.min(timeMs, durationMs));
+        int i = times.length - 1;
+        while (i > 0 && times[i] > timeMs) i--;
+        if (exact || i == times.length - 1 || times[i + 1] == times[i])
+            return offsets[i];
+        return offsets[i] + (offsets[i + 1] - offsets[i]) * (timeMs - times[i]) / (times[i + 1] - times[i]);
+    }
+
+    //For passing into UI
+    HashMap<String, Object> toJSON(long timeMs) {
+        HashMap<String, Object> out = new HashMap<>();
+        out.put("duration", durationMs);
+        out.put("offset", offset(timeMs));
+        return out;
+    }
+
+    //Returns offset after ID3v2 tag
+    private static long skipId3(Reader reader) throws IOException {
+        byte[] header = readFully(reader, 0, 10);
+        if (header[0] != 'I' || header[1] != 'D' || header[2] != '3')
+            return 0;
+        //Syncsafe size, footer flag
+        long size = ((header[6] & 0x7F) << 21) | ((header[7] & 0x7F) << 14) | ((header[8] & 0x7F) << 7) | (header[9] & 0x7F);
+        return 10 + size + (((header[5] & 0x10) != 0) ? 10 : 0);
+    }
+
+    private static SeekIndex buildFlac(Reader reader, long position, long size) throws IOException {
+        long sampleRate = 0;
+        long totalSamples = 0;
+        long[] seekSamples = null;
+        long[] seekOffsets = null;
+
+        //Metadata blocks
+        boolean last = false;
+        while (!last) {
+            byte[] header = readFully(reader, position, 4);
+            last = (header[0] & 0x80) != 0;
+            int type = header[0] & 0x7F;
+            int length = ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            position += 4;
+            //STREAMINFO
+            if (type == 0) {
+                byte[] info = readFully(reader, position, 18);
+                sampleRate = ((info[10] & 0xFFL) << 12) | ((info[11] & 0xFFL) << 4) | ((info[12] & 0xF0L) >> 4);
+                totalSamples = ((info[13] & 0x0FL) << 32) | ((info[14] & 0xFFL) << 24) | ((info[15] & 0xFFL) << 16) | ((info[16] & 0xFFL) << 8) | (info[17] & 0xFFL);
+            }
+            //SEEKTABLE, 18 bytes per point
+            if (type == 3) {
+                if (length > size - position)
+                    throw new IOException("FLAC seek table larger than file");
+                byte[] table = readFully(reader, position, length);
+                int count = 0;
+                seekSamples = new long[length / 18];
+                seekOffsets = new long[length / 18];
+                for (int i = 0; i + 18 <= length; i += 18) {
+                    long sample = readLong(table, i);
+                    //Placeholder
+                    if (sample == -1) continue;
+                    seekSamples[count] = sample;
+                    seekOffsets[count] = readLong(table, i + 8);
+                    count++;
+                }
+                seekSamples = Arrays.copyOf(seekSamples, count);
+                seekOffsets = Arrays.copyOf(seekOffsets, count);
+            }
+            position += length;
+        }
+        if (sampleRate == 0 || totalSamples == 0)
+            throw new IOException("FLAC without sample rate or length");
+        long durationMs = totalSamples * 1000 / sampleRate;
+
+        //First frame
+        long dataStart = position;
+        if (seekSamples == null || seekSamples.length == 0)
+            return new SeekIndex(durationMs, new long[]{0, durationMs}, new long[]{dataStart, size}, false);
+
+        long[] times = new long[seekSamples.length + 1];
+        long[] offsets = new long[seekSamples.length + 1];
+        //Point at start of audio, seek tables usually start with it anyway
+        times[0] = 0;
+        offsets[0] = dataStart;
+        for (int i = 0; i < seekSamples.length; i++) {
+            times[i + 1] = seekSamples[i] * 1000 / sampleRate;
+            offsets[i + 1] = dataStart + seekOffsets[i];
+        }
+        return new SeekIndex(durationMs, times, offsets, true);
+    }
+
+    private static SeekIndex buildMp3(Reader reader, long position, long size) throws IOException {
+        byte[] probe = new byte[PROBE_SIZE];
+        int read = readUpTo(reader, position, probe, PROBE_SIZE);
+        //Find first frame header
+        int frame = -1;
+        for (int i = 0; i + 4 <= read; i++) {
+            if ((probe[i] & 0xFF) == 0xFF && (probe[i + 1] & 0xE0) == 0xE0 && parseMp3Bitrate(probe, i) > 0) {
+                frame = i;
+                break;
+            }
+        }
+        if (frame == -1)
+            throw new IOException("No MP3 frame found");
+        long frameStart = position + frame;
+
+        int version = (probe[frame + 1] >> 3) & 0x03;
+        boolean mpeg1 = version == 3;
+        boolean mono = ((probe[frame + 3] >> 6) & 0x03) == 3;
+        int sampleRate = MP3_SAMPLE_RATES[(probe[frame + 2] >> 2) & 0x03] >> (mpeg1 ? 0 : (version == 2 ? 1 : 2));
+        int samplesPerFrame = mpeg1 ? 1152 : 576;
+        int bitrate = parseMp3Bitrate(probe, frame);
+
+        //Xing / Info after side information
+        int xing = frame + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+        if (xing + 8 <= read && (matches(probe, xing, "Xing") || matches(probe, xing, "Info"))) {
+            int flags = readInt(probe, xing + 4);
+            int p = xing + 8;
+            long frames = 0, bytes = size - frameStart;
+            if ((flags & 1) != 0) { frames = readInt(probe, p) & 0xFFFFFFFFL; p += 4; }
+            if ((flags & 2) != 0) { bytes = readInt(probe, p) & 0xFFFFFFFFL; p += 4; }
+            if (frames > 0) {
+                long durationMs = frames * samplesPerFrame * 1000 / sampleRate;
+                if ((flags & 4) != 0 && p + 100 <= read) {
+                    //100 entries, percent of time -> 1/256 of bytes
+                    long[] times = new long[101];
+                    long[] offsets = new long[101];
+                    for (int i = 0; i < 100; i++) {
+                        times[i] = durationMs * i / 100;
+                        offsets[i] = frameStart + (probe[p + i] & 0xFF) * bytes / 256;
+                    }
+                    times[100] = durationMs;
+                    offsets[100] = frameStart + bytes;
+                    return new SeekIndex(durationMs, times, offsets, false);
+                }
+                return new SeekIndex(durationMs, new long[]{0, durationMs}, new long[]{frameStart, frameStart + bytes}, false);
+            }
+        }
+
+        //VBRI, always 32 bytes after header
+        int vbri = frame + 36;
+        if (vbri + 26 <= read && matches(probe, vbri, "VBRI")) {
+            long frames = readInt(probe, vbri + 14) & 0xFFFFFFFFL;
+            int entries = readShort(probe, vbri + 18);
+            int scale = readShort(probe, vbri + 20);
+            int entrySize = readShort(probe, vbri + 22);
+            int framesPerEntry = readShort(probe, vbri + 24);
+            long durationMs = frames * samplesPerFrame * 1000 / sampleRate;
+            long tableStart = frameStart + 36 + 26;
+            if (entrySize < 1 || entrySize > MAX_VBRI_ENTRY_SIZE || (long) entries * entrySize > size - tableStart)
+                throw new IOException("Invalid VBRI table");
+            byte[] table = readFully(reader, tableStart, entries * entrySize);
+            long[] times = new long[entries + 1];
+            long[] offsets = new long[entries + 1];
+            times[0] = 0;
+            offsets[0] = frameStart;
+            for (int i = 0; i < entries; i++) {
+                long entry = 0;
+                for (int j = 0; j < entrySize; j++)
+                    entry = (entry << 8) | (table[i * entrySize + j] & 0xFF);
+                times[i + 1] = Math.min(durationMs, (long) (i + 1) * framesPerEntry * samplesPerFrame * 1000 / sampleRate);
+                offsets[i + 1] = offsets[i] + entry * scale;
+            }
+            return new SeekIndex(durationMs, times, offsets, false);
+        }
+
+        //Constant bitrate
+        long durationMs = (size - frameStart) * 8 / bitrate;
+        return new SeekIndex(durationMs, new long[]{0, durationMs}, new long[]{frameStart, size}, false);
+    }
+
+    //Layer III bitrate in kbit/s, 0 if invalid header
+    private static int parseMp3Bitrate(byte[] b, int off) {
+        int version = (b[off + 1] >> 3) & 0x03;
+        int layer = (b[off + 1] >> 1) & 0x03;
+        int bitrateIndex = (b[off + 2] >> 4) & 0x0F;
+        int sampleRateIndex = (b[off + 2] >> 2) & 0x03;
+        if (version == 1 || layer != 1 || sampleRateIndex == 3) return 0;
+        return (version == 3) ? MP3_BITRATES_V1[bitrateIndex] : MP3_BITRATES_V2[bitrateIndex];
+    }
+
+    private static byte[] readFully(Reader reader, long position, int length) throws IOException {
+        byte[] out = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = reader.read(position + read, out, read, length - read);
+            if (n == -1) throw new IOException("Unexpected end of track");
+            read += n;
+        }
+        return out;
+    }
+
+    //Read until length or end of track, returns bytes read
+    private static int readUpTo(Reader reader, long position, byte[] out, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = reader.read(position + read, out, read, length - read);
+            if (n == -1) break;
+            read += n;
+        }
+        return read;
+    }
+
+    private static boolean matches(byte[] b, int off, String s) {
+        for (int i = 0; i < s.length(); i++)
+            if (b[off + i] != s.charAt(i)) return false;
+        return true;
+    }
+
+    private static int readShort(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (readShort(b, off) << 16) | readShort(b, off + 2);
+    }
+
+    private static long readLong(byte[] b, int off) {
+        return ((readInt(b, off) & 0xFFFFFFFFL) << 32) | (readInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+}
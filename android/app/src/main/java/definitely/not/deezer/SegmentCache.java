@@ -0,0 +1,725 @@
+package definitely.not.deezer;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sparse on-disk cache of streamed tracks, keyed by (track, quality).
+ * Tracks are stored exactly as served by the CDN (still encrypted) in stripe aligned segments,
+ * a bitmap keeps track of which segments are present. Least recently used tracks are evicted to fit the size budget.
+ * Locks: cache before entry, an entry never takes the cache lock while holding its own.
+ */
+public class SegmentCache {
+    private static final String TAG = "SegmentCache";
+    //64 stripes
+    static final int SEGMENT_SIZE = DeezerDecryptor.STRIPE_SIZE * 64;
+    //Parallel start: requests next to the first segment, segments each
+    private static final int PARALLEL_FETCHES = 2;
+    private static final int PARALLEL_SEGMENTS = 4;
+    //Max wait for segment fetched by other request
+    private static final long AWAIT_TIMEOUT = 15 * 1000;
+    //Segments claimed ahead on reader's connection
+    private static final int CLAIM_AHEAD = 4;
+    //Give up waiting if the other request stopped receiving data (player not reading)
+    private static final long STALL_TIMEOUT = 2 * 1000;
+
+    private final File dir;
+    private long maxBytes;
+    private long totalBytes = 0;
+    //Access ordered, eldest first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    //Bytes read from disk / downloaded, for metrics
+    final AtomicLong hitBytes = new AtomicLong();
+    final AtomicLong missBytes = new AtomicLong();
+    //Parallel start fetches
+    private final ExecutorService fetchExecutor = Executors.newFixedThreadPool(PARALLEL_FETCHES);
+
+    /**
+     * @param dir Cache directory, entries from previous runs are loaded in background
+     * @param maxBytes Size budget, 0 = disabled
+     */
+    SegmentCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        fetchExecutor.execute(this::load);
+    }
+
+    //Load indexes of previous runs, oldest first to keep LRU order
+    private void load() {
+        if (!dir.exists() && !dir.mkdirs())
+            Log.w(TAG, "Unable to create cache dir: " + dir.getPath());
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        List<Entry> loaded = new ArrayList<>();
+        List<Entry> invalid = new ArrayList<>();
+        List<File> orphans = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".idx")) {
+                Entry entry = new Entry(name.substring(0, name.length() - 4));
+                if (entry.readIndex())
+                    loaded.add(entry);
+                else
+                    invalid.add(entry);
+            } else if (name.endsWith(".dat") && !new File(dir, name.substring(0, name.length() - 4) + ".idx").exists()) {
+                //Data without index can't be used
+                orphans.add(file);
+            }
+        }
+
+        synchronized (this) {
+            //Entries opened while loading are newer, saved segments are added to them (same data file)
+            LinkedHashMap<String, Entry> opened = new LinkedHashMap<>(entries);
+            entries.clear();
+            for (Entry entry : loaded) {
+                Entry open = opened.get(entry.key);
+                if (open != null) {
+                    totalBytes += open.merge(entry);
+                    continue;
+                }
+                entries.put(entry.key, entry);
+                totalBytes += entry.cachedBytes();
+            }
+            entries.putAll(opened);
+            for (Entry entry : invalid) {
+                if (!entries.containsKey(entry.key))
+                    entry.delete();
+            }
+            for (File file : orphans) {
+                String name = file.getName();
+                if (!entries.containsKey(name.substring(0, name.length() - 4)))
+                    file.delete();
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Change size budget, evicts immediately if lower.
+     * @param maxBytes Size budget, 0 = disabled
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return true if caching is enabled
+     */
+    synchronized boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Get entry for track and mark it in use, has to be released.
+     * @param trackId Track ID
+     * @param quality Effective quality (after fallback)
+     * @return Cache entry
+     */
+    synchronized Entry open(String trackId, int quality) {
+        String key = trackId + "_" + quality;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+        entry.users++;
+        return entry;
+    }
+
+    /**
+     * Release entry, saves its index.
+     * @param entry Entry returned by open
+     */
+    void release(Entry entry) {
+        entry.writeIndex();
+        synchronized (this) {
+            entry.users--;
+            if (entry.users == 0) {
+                entry.closeChannel();
+                //Nothing cached, don't keep
+                if (entry.cachedBytes() == 0 && entries.get(entry.key) == entry) {
+                    entries.remove(entry.key);
+                    entry.delete();
+                }
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Stop background fetches, entries stay valid.
+     */
+    void shutdown() {
+        fetchExecutor.shutdownNow();
+    }
+
+    /**
+     * Fetch segments in background into cache, skips cached and in-flight ones.
+     * @param entry Entry, kept in use until done
+     * @param source Upstream
+     * @param first First segment
+     * @param count Max number of segments
+     */
+    private void prefetch(Entry entry, Source source, int first, int count) {
+        synchronized (this) {
+            entry.users++;
+        }
+        try {
+            fetchExecutor.execute(() -> {
+                try {
+                    fetchSegments(entry, source, first, count);
+                } finally {
+                    release(entry);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(entry);
+        }
+    }
+
+    private void fetchSegments(Entry entry, Source source, int first, int count) {
+        //Length might not be known yet, upstream clamps the range then
+        long length = entry.length();
+        if (length != -1)
+            count = (int) Math.min(count, (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE - first);
+        int claimed = entry.claim(first, count);
+        if (claimed <= 0) return;
+        int segment = first;
+        long end = (long) (first + claimed) * SEGMENT_SIZE;
+        if (length != -1) end = Math.min(end, length);
+        try (InputStream inputStream = source.open(entry, (long) first * SEGMENT_SIZE, end - 1)) {
+            length = entry.length();
+            byte[] buffer = new byte[SEGMENT_SIZE];
+            for (; segment < first + claimed && (long) segment * SEGMENT_SIZE < length; segment++) {
+                int len = (int) Math.min(SEGMENT_SIZE, length - (long) segment * SEGMENT_SIZE);
+                int read = 0;
+                while (read < len) {
+                    int n = inputStream.read(buffer, read, len - read);
+                    if (n == -1) throw new IOException("Unexpected end of upstream");
+                    read += n;
+                    entry.progress();
+                }
+                missBytes.addAndGet(len);
+                entry.write(segment, buffer, len);
+                entry.unclaim(segment);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Parallel fetch failed: " + e);
+        } finally {
+            //Reader falls back to fetching itself
+            for (; segment < first + claimed; segment++)
+                entry.unclaim(segment);
+        }
+    }
+
+    //Called with each newly written segment (or dropped data, negative)
+    private synchronized void added(long bytes) {
+        totalBytes += bytes;
+        evict();
+    }
+
+    //Remove least recently used entries which aren't in use until it fits
+    private synchronized void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext() && totalBytes > maxBytes) {
+            Entry entry = iterator.next();
+            if (entry.users > 0) continue;
+            iterator.remove();
+            totalBytes -= entry.cachedBytes();
+            entry.delete();
+        }
+    }
+
+    /**
+     * Open range of track, served from cache where possible.
+     * @param trackId Track ID
+     * @param quality Effective quality (after fallback)
+     * @param source Upstream for missing segments
+     * @param start First byte
+     * @param end Last byte, -1 = until end of track
+     * @return Stream, closing it releases the entry
+     */
+    RangeStream openRange(String trackId, int quality, Source source, long start, long end) {
+        return new RangeStream(this, open(trackId, quality), source, start, end);
+    }
+
+    /**
+     * Single cached track, data file is sparse, only covered segments are valid.
+     */
+    class Entry {
+        private final String key;
+        private final File dataFile;
+        private final File indexFile;
+        private final BitSet coverage = new BitSet();
+        //Segments being fetched by some request, others wait for them instead of downloading again
+        private final BitSet inflight = new BitSet();
+        //Last time data for in-flight segment arrived
+        private volatile long lastProgress = 0;
+        //Total length of the track, -1 = unknown
+        private long length = -1;
+        private boolean dirty = false;
+        private FileChannel channel;
+        private int users = 0;
+
+        private Entry(String key) {
+            this.key = key;
+            dataFile = new File(dir, key + ".dat");
+            indexFile = new File(dir, key + ".idx");
+        }
+
+        /**
+         * @return Total length of the track, -1 if unknown
+         */
+        synchronized long length() {
+            return length;
+        }
+
+        /**
+         * Set total length of the track, drops cached data if it doesn't match.
+         * @param length Length reported by the CDN
+         */
+        void setLength(long length) {
+            long change;
+            synchronized (this) {
+                if (this.length == length) return;
+                long bytes = cachedBytes();
+                if (this.length != -1) {
+                    Log.w(TAG, "Track length changed, dropping: " + dataFile.getName());
+                    coverage.clear();
+                }
+                this.length = length;
+                dirty = true;
+                change = cachedBytes() - bytes;
+            }
+            //Outside of entry lock, see lock order
+            if (change != 0)
+                added(change);
+        }
+
+        /**
+         * Add segments of entry loaded from index, unless the length differs.
+         * @param saved Entry of the same key
+         * @return Bytes added
+         */
+        private synchronized long merge(Entry saved) {
+            if (length != -1 && length != saved.length) return 0;
+            long bytes = cachedBytes();
+            length = saved.length;
+            coverage.or(saved.coverage);
+            dirty = true;
+            notifyAll();
+            return cachedBytes() - bytes;
+        }
+
+        /**
+         * @param position Position in track
+         * @return true if segment containing position is cached
+         */
+        synchronized boolean isCached(long position) {
+            return coverage.get((int) (position / SEGMENT_SIZE));
+        }
+
+        /**
+         * @param position Position in track
+         * @return Start of the first cached or in-flight segment after position, length of track (or -1) if there's none
+         */
+        synchronized long nextCached(long position) {
+            int segment = (int) (position / SEGMENT_SIZE) + 1;
+            int cached = coverage.nextSetBit(segment);
+            int fetching = inflight.nextSetBit(segment);
+            int next = (cached == -1) ? fetching : (fetching == -1) ? cached : Math.min(cached, fetching);
+            return (next == -1) ? length : (long) next * SEGMENT_SIZE;
+        }
+
+        //Mark consecutive segments as in-flight, stops at cached or in-flight one, returns count
+        private synchronized int claim(int segment, int count) {
+            int claimed = 0;
+            while (claimed < count && !coverage.get(segment + claimed) && !inflight.get(segment + claimed)) {
+                inflight.set(segment + claimed);
+                claimed++;
+            }
+            if (claimed > 0) progress();
+            return claimed;
+        }
+
+        private synchronized void unclaim(int segment) {
+            if (inflight.get(segment)) {
+                inflight.clear(segment);
+                notifyAll();
+            }
+        }
+
+        /**
+         * Wait while segment is fetched by parallel request.
+         * @param segment Segment index
+         * @return true if segment is cached
+         */
+        synchronized boolean await(int segment) throws IOException {
+            long now = System.currentTimeMillis();
+            long deadline = now + AWAIT_TIMEOUT;
+            while (inflight.get(segment) && !coverage.get(segment)) {
+                now = System.currentTimeMillis();
+                if (now >= deadline || now - lastProgress > STALL_TIMEOUT) break;
+                try {
+                    wait(Math.min(deadline - now, STALL_TIMEOUT));
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            return coverage.get(segment);
+        }
+
+        //Data for in-flight segment arrived
+        void progress() {
+            lastProgress = System.currentTimeMillis();
+        }
+
+        /**
+         * Read cached data, doesn't cross segment boundary.
+         * @return Number of bytes read, -1 if not cached
+         */
+        int read(long position, byte[] b, int off, int len) throws IOException {
+            if (!isCached(position)) return -1;
+            long segmentEnd = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+            len = (int) Math.min(len, segmentEnd - position);
+            if (length() != -1)
+                len = (int) Math.min(len, length() - position);
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            FileChannel fileChannel = channel();
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, position + buffer.position() - off) == -1)
+                    throw new IOException("Cache file truncated: " + dataFile.getName());
+            }
+            return len;
+        }
+
+        /**
+         * Store complete segment (last one can be shorter).
+         * @param segment Segment index
+         * @param data Segment data
+         * @param len Segment length
+         */
+        void write(int segment, byte[] data, int len) throws IOException {
+            if (!isEnabled() || isCached((long) segment * SEGMENT_SIZE)) return;
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, len);
+            FileChannel fileChannel = channel();
+            long position = (long) segment * SEGMENT_SIZE;
+            while (buffer.hasRemaining())
+                fileChannel.write(buffer, position + buffer.position());
+            long bytes;
+            synchronized (this) {
+                //Written by other request meanwhile
+                if (coverage.get(segment)) return;
+                coverage.set(segment);
+                dirty = true;
+                notifyAll();
+                bytes = segmentBytes(segment);
+            }
+            added(bytes);
+        }
+
+        //Bytes stored, last segment by its real length
+        private synchronized long cachedBytes() {
+            long bytes = (long) coverage.cardinality() * SEGMENT_SIZE;
+            int last = coverage.length() - 1;
+            if (last >= 0)
+                bytes -= SEGMENT_SIZE - segmentBytes(last);
+            return bytes;
+        }
+
+        //Size of segment, full while length is unknown, has to hold lock
+        private long segmentBytes(int segment) {
+            if (length == -1) return SEGMENT_SIZE;
+            return Math.max(0, Math.min(SEGMENT_SIZE, length - (long) segment * SEGMENT_SIZE));
+        }
+
+        private synchronized FileChannel channel() throws IOException {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(dataFile, "rw").getChannel();
+            return channel;
+        }
+
+        private synchronized void closeChannel() {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException ignored) {}
+            channel = null;
+        }
+
+        //Index: length, bitmap
+        private synchronized void writeIndex() {
+            if (!dirty || length == -1) return;
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile))) {
+                byte[] bitmap = coverage.toByteArray();
+                out.writeLong(length);
+                out.writeInt(bitmap.length);
+                out.write(bitmap);
+                dirty = false;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed saving cache index: " + e);
+            }
+        }
+
+        private synchronized boolean readIndex() {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+                length = in.readLong();
+                byte[] bitmap = new byte[in.readInt()];
+                in.readFully(bitmap);
+                coverage.or(BitSet.valueOf(bitmap));
+                return dataFile.exists();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private synchronized void delete() {
+            closeChannel();
+            coverage.clear();
+            length = -1;
+            dataFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Opens upstream (CDN) data.
+     */
+    interface Source {
+        /**
+         * @param entry Entry, total length of track has to be set with setLength
+         * @param start First byte
+         * @param end Last byte, -1 = until end of track
+         * @return Stream of the requested range
+         */
+        InputStream open(Entry entry, long start, long end) throws IOException;
+    }
+
+    /**
+     * Reads range of the track, cached segments from disk, gaps from upstream.
+     * Fetched segments are stored to cache.
+     */
+    static class RangeStream extends InputStream {
+        private final SegmentCache cache;
+        private final Entry entry;
+        private final Source source;
+        private long position;
+        private long last;
+
+        private InputStream upstream;
+        //Last byte requested from upstream, -1 = end of track
+        private long upstreamEnd = -1;
+        //Split first upstream request into parallel ones
+        private boolean parallel = false;
+        //Segment being fetched from upstream
+        private final byte[] segment = new byte[SEGMENT_SIZE];
+        private long segmentStart = -1;
+        private int segmentFill = 0;
+        //Segments claimed as in-flight by this stream, [claimedFrom, claimedTo)
+        private int claimedFrom = 0;
+        private int claimedTo = 0;
+        private boolean closed = false;
+
+        private RangeStream(SegmentCache cache, Entry entry, Source source, long start, long end) {
+            this.cache = cache;
+            this.entry = entry;
+            this.source = source;
+            this.position = start;
+            this.last = end;
+        }
+
+        /**
+         * Fetch the start of the range with parallel requests, the first segment from this stream,
+         * following ones in the background, so the first audio doesn't wait on a single slow connection.
+         * Has to be called before reading, only useful with cache enabled.
+         */
+        void parallelStart() {
+            parallel = cache.isEnabled();
+        }
+
+        /**
+         * Total length of the track, connects upstream if not known.
+         * @return Length
+         */
+        long length() throws IOException {
+            //Other request is already connecting for this segment
+            if (entry.length() == -1)
+                entry.await((int) (position / SEGMENT_SIZE));
+            if (entry.length() == -1)
+                fetch(position);
+            if (entry.length() == -1)
+                throw new IOException("Unknown track length");
+            return entry.length();
+        }
+
+        //Make sure segment containing position is being fetched
+        private void fetch(long position) throws IOException {
+            long start = position - position % SEGMENT_SIZE;
+            if (upstream != null && segmentStart == start) return;
+            //Continue to next segment on the same connection
+            if (upstream != null && segmentStart + SEGMENT_SIZE == start && segmentFill == SEGMENT_SIZE
+                    && (upstreamEnd == -1 || start <= upstreamEnd)) {
+                segmentStart = start;
+                segmentFill = 0;
+                claim();
+                return;
+            }
+            closeUpstream();
+            //Fetch until next cached segment or end of the requested range, whole segments so they can be cached
+            long gapEnd = entry.nextCached(start);
+            upstreamEnd = (gapEnd == -1) ? -1 : gapEnd - 1;
+            long rangeEnd = (last == -1) ? -1 : (last / SEGMENT_SIZE + 1) * SEGMENT_SIZE - 1;
+            if (rangeEnd != -1 && (upstreamEnd == -1 || rangeEnd < upstreamEnd))
+                upstreamEnd = rangeEnd;
+            if (parallel && (upstreamEnd == -1 || upstreamEnd >= start + SEGMENT_SIZE)) {
+                upstreamEnd = start + SEGMENT_SIZE - 1;
+                //Connect at the same time as this request, not past the requested range
+                int next = (int) (start / SEGMENT_SIZE) + 1;
+                int lastSegment = (rangeEnd == -1) ? Integer.MAX_VALUE : (int) (rangeEnd / SEGMENT_SIZE);
+                for (int i = 0; i < PARALLEL_FETCHES; i++) {
+                    int first = next + i * PARALLEL_SEGMENTS;
+                    if (first > lastSegment) break;
+                    cache.prefetch(entry, source, first, Math.min(PARALLEL_SEGMENTS, lastSegment - first + 1));
+                }
+            }
+            parallel = false;
+            segmentStart = start;
+            segmentFill = 0;
+            claim();
+            try {
+                upstream = source.open(entry, start, upstreamEnd);
+            } catch (IOException e) {
+                unclaim();
+                segmentStart = -1;
+                throw e;
+            }
+        }
+
+        //Let other streams wait for the current and next segments coming on this connection instead of downloading them,
+        //they get them from cache
+        private void claim() {
+            if (!cache.isEnabled()) return;
+            int index = (int) (segmentStart / SEGMENT_SIZE);
+            if (index < claimedFrom || index > claimedTo) {
+                unclaim();
+                claimedFrom = claimedTo = index;
+            }
+            claimedFrom = index;
+            int limit = index + CLAIM_AHEAD;
+            if (upstreamEnd != -1)
+                limit = (int) Math.min(limit, upstreamEnd / SEGMENT_SIZE + 1);
+            if (claimedTo < limit)
+                claimedTo += entry.claim(claimedTo, limit - claimedTo);
+        }
+
+        //Segment done, cached
+        private void unclaimCurrent() {
+            int index = (int) (segmentStart / SEGMENT_SIZE);
+            if (index >= claimedFrom && index < claimedTo) {
+                entry.unclaim(index);
+                claimedFrom = index + 1;
+            }
+        }
+
+        private void unclaim() {
+            for (int i = claimedFrom; i < claimedTo; i++)
+                entry.unclaim(i);
+            claimedFrom = claimedTo = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long length = length();
+            long end = (last == -1) ? length - 1 : Math.min(last, length - 1);
+            if (position > end) return -1;
+            if (len == 0) return 0;
+            len = (int) Math.min(len, end - position + 1);
+
+            //From cache, wait if fetched by other request
+            int index = (int) (position / SEGMENT_SIZE);
+            if (segmentStart != position - position % SEGMENT_SIZE) {
+                if (index < claimedFrom || index >= claimedTo)
+                    entry.await(index);
+                int read = entry.read(position, b, off, len);
+                if (read != -1) {
+                    cache.hitBytes.addAndGet(read);
+                    position += read;
+                    return read;
+                }
+            }
+
+            //From upstream
+            fetch(position);
+            int skip = (int) (position - segmentStart);
+            while (segmentFill <= skip) {
+                int read = upstream.read(segment, segmentFill, SEGMENT_SIZE - segmentFill);
+                if (read == -1)
+                    throw new IOException("Unexpected end of upstream");
+                cache.missBytes.addAndGet(read);
+                entry.progress();
+                segmentFill += read;
+                if (segmentFill == SEGMENT_SIZE || segmentStart + segmentFill == length)
+                    complete();
+            }
+            int n = Math.min(len, segmentFill - skip);
+            System.arraycopy(segment, skip, b, off, n);
+            position += n;
+            return n;
+        }
+
+        //Store fetched segment
+        private void complete() {
+            try {
+                entry.write((int) (segmentStart / SEGMENT_SIZE), segment, segmentFill);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed writing segment: " + e);
+            }
+            unclaimCurrent();
+        }
+
+        private void closeUpstream() {
+            unclaim();
+            if (upstream == null) return;
+            try {
+                upstream.close();
+            } catch (IOException ignored) {}
+            upstream = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeUpstream();
+            if (!closed) {
+                closed = true;
+                cache.release(entry);
+            }
+        }
+    }
+}
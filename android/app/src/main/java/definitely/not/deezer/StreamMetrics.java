@@ -0,0 +1,214 @@
+package definitely.not.deezer;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Performance counters of StreamServer, exposed as Prometheus text (/metrics) and as map for UI.
+ * Recording only updates atomics, no locks or allocations, so it's safe to call from read loops.
+ */
+public class StreamMetrics {
+    //Histogram upper bounds in ms
+    private static final long[] LATENCY_BUCKETS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+    //Index for upstream failures without HTTP status
+    private static final int NO_STATUS = 0;
+
+    //Indexed by Source
+    final AtomicLong[] requests = {new AtomicLong(), new AtomicLong()};
+    final AtomicLong[] servedBytes = {new AtomicLong(), new AtomicLong()};
+    //Connect to response headers
+    final Histogram upstreamFirstByte = new Histogram(LATENCY_BUCKETS);
+    //get_url & fallback
+    final Histogram urlResolve = new Histogram(LATENCY_BUCKETS);
+    private final AtomicLong decryptedBytes = new AtomicLong();
+    private final AtomicLong decryptNanos = new AtomicLong();
+    //By HTTP status, 0 = network error
+    private final AtomicLongArray upstreamErrors = new AtomicLongArray(600);
+    final AtomicLong resolvedHits = new AtomicLong();
+    final AtomicLong resolvedMisses = new AtomicLong();
+
+    private final SegmentCache segmentCache;
+    private final OfflineFileCache offlineFiles;
+    private LocalHttpServer server;
+
+    enum Source {
+        STREAM("Stream"),
+        OFFLINE("Offline");
+
+        final String label;
+
+        Source(String label) {
+            this.label = label;
+        }
+    }
+
+    StreamMetrics(SegmentCache segmentCache, OfflineFileCache offlineFiles) {
+        this.segmentCache = segmentCache;
+        this.offlineFiles = offlineFiles;
+    }
+
+    //Server is recreated on start
+    void setServer(LocalHttpServer server) {
+        this.server = server;
+    }
+
+    void request(Source source) {
+        requests[source.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * @return Counter of bytes sent to player for source
+     */
+    AtomicLong servedBytes(Source source) {
+        return servedBytes[source.ordinal()];
+    }
+
+    void decrypted(long bytes, long nanos) {
+        decryptedBytes.addAndGet(bytes);
+        decryptNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param status HTTP status, 0 if the request failed without one
+     */
+    void upstreamError(int status) {
+        upstreamErrors.incrementAndGet((status > 0 && status < upstreamErrors.length()) ? status : NO_STATUS);
+    }
+
+    /**
+     * Fixed bucket histogram of durations.
+     */
+    static class Histogram {
+        private final long[] bounds;
+        //Last one is +Inf
+        private final AtomicLongArray buckets;
+        private final AtomicLong sum = new AtomicLong();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            buckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void observe(long ms) {
+            int i = 0;
+            while (i < bounds.length && ms > bounds[i]) i++;
+            buckets.incrementAndGet(i);
+            sum.addAndGet(ms);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++)
+                count += buckets.get(i);
+            return count;
+        }
+
+        private void write(StringBuilder out, String name) {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets.get(i);
+                out.append(name).append("_bucket{le=\"").append(seconds(bounds[i])).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets.get(bounds.length);
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(seconds(sum.get())).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * @return Metrics in Prometheus text exposition format
+     */
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        header(out, "alchemy_stream_requests_total", "counter", "Requests served by source.");
+        for (Source source : Source.values())
+            out.append("alchemy_stream_requests_total{source=\"").append(source.label).append("\"} ").append(requests[source.ordinal()].get()).append('\n');
+        header(out, "alchemy_stream_served_bytes_total", "counter", "Bytes sent to the player by source.");
+        for (Source source : Source.values())
+            out.append("alchemy_stream_served_bytes_total{source=\"").append(source.label).append("\"} ").append(servedBytes[source.ordinal()].get()).append('\n');
+
+        header(out, "alchemy_upstream_first_byte_seconds", "histogram", "Time from CDN connect to response headers.");
+        upstreamFirstByte.write(out, "alchemy_upstream_first_byte_seconds");
+        header(out, "alchemy_url_resolve_seconds", "histogram", "Time resolving stream URL with quality fallback.");
+        urlResolve.write(out, "alchemy_url_resolve_seconds");
+        header(out, "alchemy_upstream_errors_total", "counter", "Failed CDN requests by HTTP status.");
+        for (int status = 0; status < upstreamErrors.length(); status++) {
+            long count = upstreamErrors.get(status);
+            if (count > 0)
+                out.append("alchemy_upstream_errors_total{status=\"").append(status == NO_STATUS ? "none" : Integer.toString(status)).append("\"} ").append(count).append('\n');
+        }
+
+        header(out, "alchemy_decrypt_bytes_total", "counter", "Bytes run through Blowfish.");
+        out.append("alchemy_decrypt_bytes_total ").append(decryptedBytes.get()).append('\n');
+        header(out, "alchemy_decrypt_seconds_total", "counter", "Time spent decrypting.");
+        out.append("alchemy_decrypt_seconds_total ").append(nanosToSeconds(decryptNanos.get())).append('\n');
+
+        //Segment cache counts bytes, the others lookups, separate families so units don't mix
+        header(out, "alchemy_cache_hit_bytes_total", "counter", "Bytes served from cache.");
+        out.append("alchemy_cache_hit_bytes_total{cache=\"segment\"} ").append(segmentCache.hitBytes.get()).append('\n');
+        header(out, "alchemy_cache_miss_bytes_total", "counter", "Bytes fetched because they weren't cached.");
+        out.append("alchemy_cache_miss_bytes_total{cache=\"segment\"} ").append(segmentCache.missBytes.get()).append('\n');
+        header(out, "alchemy_cache_hits_total", "counter", "Cache lookups that hit.");
+        out.append("alchemy_cache_hits_total{cache=\"url\"} ").append(resolvedHits.get()).append('\n');
+        out.append("alchemy_cache_hits_total{cache=\"offline\"} ").append(offlineFiles.hits.get()).append('\n');
+        header(out, "alchemy_cache_misses_total", "counter", "Cache lookups that missed.");
+        out.append("alchemy_cache_misses_total{cache=\"url\"} ").append(resolvedMisses.get()).append('\n');
+        out.append("alchemy_cache_misses_total{cache=\"offline\"} ").append(offlineFiles.misses.get()).append('\n');
+
+        LocalHttpServer server = this.server;
+        header(out, "alchemy_connections_open", "gauge", "Open player connections.");
+        out.append("alchemy_connections_open ").append(server != null ? server.getOpenConnections() : 0).append('\n');
+        header(out, "alchemy_requests_active", "gauge", "Requests being served.");
+        out.append("alchemy_requests_active ").append(server != null ? server.getActiveRequests() : 0).append('\n');
+        return out.toString();
+    }
+
+    //For passing into UI
+    HashMap<String, Object> toJSON() {
+        HashMap<String, Object> out = new HashMap<>();
+        out.put("streamRequests", requests[Source.STREAM.ordinal()].get());
+        out.put("offlineRequests", requests[Source.OFFLINE.ordinal()].get());
+        out.put("streamBytes", servedBytes[Source.STREAM.ordinal()].get());
+        out.put("offlineBytes", servedBytes[Source.OFFLINE.ordinal()].get());
+        out.put("upstreamFirstByteAvgMs", average(upstreamFirstByte));
+        out.put("urlResolveAvgMs", average(urlResolve));
+        long nanos = decryptNanos.get();
+        out.put("decryptBytesPerSecond", nanos > 0 ? (long) (decryptedBytes.get() * 1e9 / nanos) : 0L);
+        long errors = 0;
+        for (int i = 0; i < upstreamErrors.length(); i++)
+            errors += upstreamErrors.get(i);
+        out.put("upstreamErrors", errors);
+        out.put("segmentCacheHitRatio", ratio(segmentCache.hitBytes.get(), segmentCache.missBytes.get()));
+        out.put("urlCacheHitRatio", ratio(resolvedHits.get(), resolvedMisses.get()));
+        out.put("offlineCacheHitRatio", ratio(offlineFiles.hits.get(), offlineFiles.misses.get()));
+        LocalHttpServer server = this.server;
+        out.put("openConnections", server != null ? server.getOpenConnections() : 0);
+        out.put("activeRequests", server != null ? server.getActiveRequests() : 0);
+        return out;
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static long average(Histogram histogram) {
+        long count = histogram.count();
+        return count > 0 ? histogram.sum.get() / count : 0;
+    }
+
+    private static double ratio(long hits, long misses) {
+        return (hits + misses > 0) ? (double) hits / (hits + misses) : 0.0;
+    }
+
+    private static String seconds(long ms) {
+        return String.format(Locale.US, "%.3f", ms / 1000.0);
+    }
+
+    private static String nanosToSeconds(long nanos) {
+        return String.format(Locale.US, "%.6f", nanos / 1e9);
+    }
+}
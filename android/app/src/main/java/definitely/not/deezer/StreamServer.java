@@ -3,38 +3,94 @@ package definitely.not.deezer;
 import android.content.pm.PackageManager;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.net.ssl.HttpsURLConnection;
-import fi.iki.elonen.NanoHTTPD;
+
+import definitely.not.deezer.LocalHttpServer.Request;
+import definitely.not.deezer.LocalHttpServer.Response;
+import definitely.not.deezer.LocalHttpServer.Status;
+
+import static definitely.not.deezer.LocalHttpServer.MIME_PLAINTEXT;
+import static definitely.not.deezer.LocalHttpServer.newFileResponse;
+import static definitely.not.deezer.LocalHttpServer.newFixedLengthResponse;
 
 public class StreamServer {
 
-    public HashMap<String, StreamInfo> streams = new HashMap<>();
+    //Written from request workers, read from UI
+    public final Map<String, StreamInfo> streams = new ConcurrentHashMap<>();
 
-    private WebServer server;
+    private LocalHttpServer server;
     private final String offlinePath;
 
     //Shared log & API
     private final DownloadLog logger;
     private final Deezer deezer;
-    private boolean authorized = false;
+    //Recently streamed data
+    private final SegmentCache cache;
+    //Open offline files
+    private final OfflineFileCache offlineFiles = new OfflineFileCache();
+    //Copies fully streamed tracks to offline files
+    private final OfflineTee offlineTee;
+    //Seek indexes by file (see seekKey), built when a seek needs them
+    private static final int SEEK_INDEX_CACHE_SIZE = 32;
+    private final Map<String, SeekIndex> seekIndexes = new LinkedHashMap<String, SeekIndex>(SEEK_INDEX_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SeekIndex> eldest) {
+            return size() > SEEK_INDEX_CACHE_SIZE;
+        }
+    };
+    //One build at a time, seek request & UI asking for the same file share it
+    private final Object seekIndexBuild = new Object();
+    //Bytes of stream fetched at once while parsing headers
+    private static final int SEEK_HEADER_BLOCK = 64 * 1024;
+    //Resolved CDN URLs by (stream track ID, requested quality)
+    private static final int RESOLVED_CACHE_SIZE = 64;
+    private final Map<String, ResolvedStream> resolved = new LinkedHashMap<String, ResolvedStream>(RESOLVED_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ResolvedStream> eldest) {
+            return size() > RESOLVED_CACHE_SIZE;
+        }
+    };
+
+    //Served at /metrics
+    private final StreamMetrics metrics;
+    //get_url for queued streams in batches
+    private final TrackUrlResolver urlResolver;
+    //CDN throughput for auto quality
+    private final ThroughputEstimator throughput = new ThroughputEstimator();
+    //Limits downloads while playback buffer is low
+    private final BandwidthManager bandwidth;
+    //Quality picked for auto streams by track ID, so seeks stay on the same file
+    private static final int AUTO_QUALITY_CACHE_SIZE = 32;
+    private final Map<String, Integer> autoQualities = new LinkedHashMap<String, Integer>(AUTO_QUALITY_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > AUTO_QUALITY_CACHE_SIZE;
+        }
+    };
 
-    StreamServer(String arl, String offlinePath) {
+    StreamServer(Deezer deezer, String offlinePath, File cacheDir, long cacheSize, BandwidthManager.Listener downloadLimitListener, OfflineTee.Listener offlineListener) {
         //Initialize shared variables
-        logger = new DownloadLog();
-        deezer = new Deezer();
-        deezer.init(logger, arl);
+        this.deezer = deezer;
+        logger = deezer.logger;
         this.offlinePath = offlinePath;
+        offlineTee = new OfflineTee(offlinePath, offlineListener);
+        cache = new SegmentCache(cacheDir, cacheSize);
+        metrics = new StreamMetrics(cache, offlineFiles);
+        urlResolver = new TrackUrlResolver(deezer);
+        bandwidth = new BandwidthManager(downloadLimitListener);
     }
 
     //Create server
@@ -42,8 +98,11 @@ public class StreamServer {
         try {
             String host = "127.0.0.1";
             int port = 36958;
-            server = new WebServer(host, port);
+            server = new LocalHttpServer(host, port, new WebServer());
+            metrics.setServer(server);
             server.start();
+            bandwidth.start();
+            new Thread(offlineTee::sweep).start();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -52,6 +111,135 @@ public class StreamServer {
     void stop() {
         if (server != null)
             server.stop();
+        offlineFiles.clear();
+        cache.shutdown();
+        bandwidth.stop();
+    }
+
+    /**
+     * Builds seek index of served file.
+     */
+    interface SeekIndexLoader {
+        SeekIndex load() throws Exception;
+    }
+
+    /**
+     * Seek index of file last served for track, built if needed (blocks).
+     * @param id Track ID (same as in streams)
+     * @return Seek index or null if track wasn't served
+     * @throws Exception If building failed
+     */
+    SeekIndex getSeekIndex(String id) throws Exception {
+        StreamInfo info = streams.get(id);
+        return (info == null) ? null : seekIndex(info.seekKey, info.seekIndexLoader);
+    }
+
+    //Cached or built now
+    private SeekIndex seekIndex(String key, SeekIndexLoader loader) throws Exception {
+        SeekIndex seekIndex = getSeekIndexByKey(key);
+        if (seekIndex != null) return seekIndex;
+        synchronized (seekIndexBuild) {
+            seekIndex = getSeekIndexByKey(key);
+            if (seekIndex == null) {
+                seekIndex = loader.load();
+                putSeekIndex(key, seekIndex);
+            }
+            return seekIndex;
+        }
+    }
+
+    private SeekIndex getSeekIndexByKey(String key) {
+        synchronized (seekIndexes) {
+            return seekIndexes.get(key);
+        }
+    }
+
+    private void putSeekIndex(String key, SeekIndex seekIndex) {
+        synchronized (seekIndexes) {
+            seekIndexes.put(key, seekIndex);
+        }
+    }
+
+    //Same track can be served from offline file or as stream in other quality, each has its own offsets
+    private static String seekKey(String id, String source, String file) {
+        return id + "_" + source + "_" + file;
+    }
+
+    private ResolvedStream getResolved(String key) {
+        synchronized (resolved) {
+            ResolvedStream stream = resolved.get(key);
+            if (stream != null && stream.expires < System.currentTimeMillis()) {
+                resolved.remove(key);
+                return null;
+            }
+            return stream;
+        }
+    }
+
+    private void putResolved(String key, ResolvedStream stream) {
+        synchronized (resolved) {
+            resolved.put(key, stream);
+        }
+    }
+
+    private void invalidateResolved(String key) {
+        synchronized (resolved) {
+            resolved.remove(key);
+        }
+    }
+
+    /**
+     * Quality for stream requested with q=auto, picked by throughput once per track.
+     * @param id Track ID (same as in streams)
+     * @return Deezer quality
+     */
+    private int getAutoQuality(String id) {
+        synchronized (autoQualities) {
+            Integer quality = autoQualities.get(id);
+            if (quality == null) {
+                quality = throughput.pickQuality();
+                autoQualities.put(id, quality);
+                Log.d("StreamServer", "Auto quality " + quality + " for " + id + ", throughput: " + throughput.getEstimate() + " bit/s");
+            }
+            return quality;
+        }
+    }
+
+    /**
+     * Tracks queued for playback, their URLs are resolved in batches together with the played one.
+     * @param tracks Maps with trackToken & quality (q parameter of the stream URL)
+     */
+    void setQueue(List<Map<String, String>> tracks) {
+        LinkedHashMap<String, Integer> pending = new LinkedHashMap<>();
+        int autoQuality = throughput.pickQuality();
+        for (Map<String, String> track : tracks) {
+            String quality = track.get("quality");
+            if (track.get("trackToken") == null || quality == null) continue;
+            pending.put(track.get("trackToken"), quality.equals("auto") ? autoQuality : Integer.parseInt(quality));
+        }
+        urlResolver.setPending(pending);
+    }
+
+    /**
+     * @return Performance counters
+     */
+    StreamMetrics getMetrics() {
+        return metrics;
+    }
+
+    //Save fully streamed tracks offline
+    void setStreamToOffline(boolean enabled) {
+        offlineTee.setEnabled(enabled);
+    }
+
+    //Quality of offline downloads, only streams in it are saved
+    void setOfflineQuality(int quality) {
+        offlineTee.setQuality(quality);
+    }
+
+    //Update stream cache size budget
+    void setCacheSize(long cacheSize) {
+        cache.setMaxBytes(cacheSize);
     }
 
     //Information about streamed audio - for showing in UI
@@ -60,11 +248,16 @@ public class StreamServer {
         long size;
         //"Stream" or "Offline"
         String source;
+        //Key of seek index for served file
+        final String seekKey;
+        final SeekIndexLoader seekIndexLoader;
 
-        StreamInfo(String format, long size, String source) {
+        StreamInfo(String format, long size, String source, String seekKey, SeekIndexLoader seekIndexLoader) {
             this.format = format;
             this.size = size;
             this.source = source;
+            this.seekKey = seekKey;
+            this.seekIndexLoader = seekIndexLoader;
         }
 
         //For passing into UI
@@ -78,29 +271,58 @@ public class StreamServer {
 
     }
 
-    private class WebServer extends NanoHTTPD {
-        public WebServer(String hostname, int port) {
-            super(hostname, port);
+    //Result of quality & track fallback, valid until the CDN URL expires
+    static class ResolvedStream {
+        //Used if URL doesn't contain expiration
+        private static final long DEFAULT_TTL = 10 * 60 * 1000;
+        private static final long MAX_TTL = 60 * 60 * 1000;
+        //Don't use URLs about to expire
+        private static final long EXPIRY_MARGIN = 60 * 1000;
+        private static final Pattern EXP_PATTERN = Pattern.compile("exp=(\\d+)");
+
+        String url;
+        int quality;
+        String trackId;
+        boolean encrypted;
+        long expires;
+
+        ResolvedStream(String url, Deezer.QualityInfo qualityInfo) {
+            this.url = url;
+            this.quality = qualityInfo.quality;
+            this.trackId = qualityInfo.trackId;
+            this.encrypted = qualityInfo.encrypted;
+            this.expires = expiry(url, System.currentTimeMillis());
         }
 
-        @Override
-        public Response serve(IHTTPSession session) {
-            //Must be only GET
-            if (session.getMethod() != Method.GET)
-                return newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "Only GET request supported!");
+        //CDN token contains expiration as unix timestamp (...?hdnea=exp=1700000000~acl=...)
+        static long expiry(String url, long now) {
+            Matcher matcher = EXP_PATTERN.matcher(url);
+            if (matcher.find()) {
+                try {
+                    return Math.min(Long.parseLong(matcher.group(1)) * 1000 - EXPIRY_MARGIN, now + MAX_TTL);
+                } catch (NumberFormatException ignored) {}
+            }
+            return now + DEFAULT_TTL;
+        }
+    }
 
+    private class WebServer implements LocalHttpServer.Handler {
+        @Override
+        public Response serve(Request session) {
+            if (session.path.equals("/metrics"))
+                return newFixedLengthResponse(Status.OK, "text/plain; version=0.0.4", metrics.toPrometheus());
             try {
                 //Parse range header
                 String rangeHeader = session.getHeaders().get("range");
-                int startBytes = 0;
+                long startBytes = 0;
                 boolean isRanged = false;
-                int end = -1;
+                long end = -1;
                 if (rangeHeader != null && rangeHeader.startsWith("bytes")) {
                     isRanged = true;
                     String[] ranges = rangeHeader.split("=")[1].split("-");
-                    startBytes = Integer.parseInt(ranges[0]);
+                    startBytes = Long.parseLong(ranges[0]);
                     if (ranges.length > 1 && !ranges[1].equals(" ")) {
-                        end = Integer.parseInt(ranges[1]);
+                        end = Long.parseLong(ranges[1]);
                     }
                 }
 
@@ -111,206 +333,293 @@ public class StreamServer {
                         return offlineStream(session, startBytes, end, isRanged);
                     }
                     //Missing QP
-                    return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Invalid / Missing QP");
+                    return newFixedLengthResponse(Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Invalid / Missing QP");
                 }
 
                 //Stream
                 return deezerStream(session, startBytes, end, isRanged);
             } catch (Exception e) {
                 e.printStackTrace();
-                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "An error occurred while serving the request.");
+                return newFixedLengthResponse(Status.INTERNAL_ERROR, MIME_PLAINTEXT, "An error occurred while serving the request.");
             }
         }
 
-        private Response offlineStream(IHTTPSession session, int startBytes, int end, boolean isRanged) {
+        private Response offlineStream(Request session, long startBytes, long end, boolean isRanged) {
             //Get path
             String trackId = Objects.requireNonNull(session.getParameters().get("id")).get(0);
+            metrics.request(StreamMetrics.Source.OFFLINE);
             File file = new File(offlinePath, trackId);
-            long size = file.length();
-            //Read header
-            boolean isFlac = false;
+            //Open file, format & size are cached with the handle
+            OfflineFileCache.OfflineFile offlineFile;
             try {
-                InputStream inputStream = new FileInputStream(file);
-                byte[] buffer = new byte[4];
-                inputStream.read(buffer, 0, 4);
-                inputStream.close();
-                if (new String(buffer).equals("fLaC"))
-                    isFlac = true;
+                offlineFile = offlineFiles.acquire(file);
             } catch (Exception e) {
                 Log.d("StreamServer", "Invalid offline file: " + e.getMessage());
-                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Invalid offline file!");
+                return newFixedLengthResponse(Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Invalid offline file!");
             }
-            //Open file
-            RandomAccessFile randomAccessFile;
+            //Response releases the file once sent, released here if anything fails before
+            boolean handedOver = false;
             try {
-                randomAccessFile = new RandomAccessFile(file, "r");
-                randomAccessFile.seek(startBytes);
-            } catch (Exception e) {
-                Log.d("StreamServer", "Failed getting offline data: " + e.getMessage());
-                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Failed getting data!");
-            }
-
-            //Generate response
-            Response response = newFixedLengthResponse(
-                    isRanged ? Response.Status.PARTIAL_CONTENT : Response.Status.OK,
-                    isFlac ? "audio/flac" : "audio/mpeg",
-                    new InputStream() {
-                        @Override
-                        public int read() throws IOException {
-                            return 0;
-                        }
-                        //Pass thru
-                        @Override
-                        public int read(byte[] b, int off, int len) throws IOException {
-                            return randomAccessFile.read(b, off, len);
-                        }
-                    },
-                    ((end == -1) ? size : end) - startBytes
-            );
-            //Ranged header
-            if (isRanged) {
-                String range = "bytes " + Integer.toString(startBytes) + "-" + Long.toString((end == -1) ? size - 1 : end);
-                range += "/" + Long.toString(size);
-                response.addHeader("Content-Range", range);
-            }
-            response.addHeader("Accept-Ranges", "bytes");
+                long size = offlineFile.size;
+                boolean isFlac = offlineFile.flac;
+                //Seek index is built on first time seek, redownload in other quality changes size
+                final String seekKey = seekKey(trackId, "Offline", Long.toString(size));
+                final SeekIndexLoader seekIndexLoader = () -> {
+                    OfflineFileCache.OfflineFile indexFile = offlineFiles.acquire(file);
+                    try {
+                        return SeekIndex.build(indexFile::read, indexFile.size);
+                    } finally {
+                        offlineFiles.release(indexFile);
+                    }
+                };
+                //Time seek
+                if (session.getParameters().get("t") != null) {
+                    try {
+                        SeekIndex seekIndex = seekIndex(seekKey, seekIndexLoader);
+                        startBytes = seekIndex.offset(Long.parseLong(session.getParameters().get("t").get(0)));
+                        isRanged = true;
+                    } catch (Exception e) {
+                        Log.d("StreamServer", "Failed building seek index: " + e.getMessage());
+                    }
+                }
+                long lastByte = (end == -1 || end >= size) ? size - 1 : end;
+                if (startBytes > lastByte)
+                    return newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "Invalid range!");
+
+                //Generate response, plain files are sent directly from file
+                Status status = isRanged ? Status.PARTIAL_CONTENT : Status.OK;
+                String mimeType = isFlac ? "audio/flac" : "audio/mpeg";
+                Response response;
+                if (offlineFile.channel() != null) {
+                    response = newFileResponse(status, mimeType, offlineFile.channel(), startBytes, lastByte - startBytes + 1, () -> offlineFiles.release(offlineFile));
+                } else {
+                    response = newFixedLengthResponse(status, mimeType, offlineFile.openStream(startBytes, lastByte), lastByte - startBytes + 1);
+                }
+                //Ranged header
+                if (isRanged) {
+                    String range = "bytes " + Long.toString(startBytes) + "-" + Long.toString(lastByte);
+                    range += "/" + Long.toString(size);
+                    response.addHeader("Content-Range", range);
+                }
+                response.addHeader("Accept-Ranges", "bytes");
+                response.countBytes(metrics.servedBytes(StreamMetrics.Source.OFFLINE));
 
-            //Save stream info
-            streams.put(trackId, new StreamInfo((isFlac ? "FLAC" : "MP3"), size, "Offline"));
+                //Save stream info
+                streams.put(trackId, new StreamInfo((isFlac ? "FLAC" : "MP3"), size, "Offline", seekKey, seekIndexLoader));
 
-            return response;
+                handedOver = true;
+                return response;
+            } finally {
+                if (!handedOver)
+                    offlineFiles.release(offlineFile);
+            }
         }
 
-        private Response deezerStream(IHTTPSession session, int startBytes, int end, boolean isRanged) {
-            // Authorize
-            if (!authorized) {
-                deezer.authorize();
-                authorized = true;
-            }
+        private Response deezerStream(Request session, long startBytes, long end, boolean isRanged) {
+            metrics.request(StreamMetrics.Source.STREAM);
+            // Authorize, returns right away while the session is valid
+            deezer.authorize();
 
-            //Get QP into Quality Info
+            //Get QP into Quality Info, auto = pick by measured throughput
+            String q = Objects.requireNonNull(session.getParameters().get("q")).get(0);
+            int quality = q.equals("auto")
+                    ? getAutoQuality(Objects.requireNonNull(session.getParameters().get("id")).get(0))
+                    : Integer.parseInt(q);
             Deezer.QualityInfo qualityInfo = new Deezer.QualityInfo(
-                    Integer.parseInt(Objects.requireNonNull(session.getParameters().get("q")).get(0)),
+                    quality,
                     Objects.requireNonNull(session.getParameters().get("streamTrackId")).get(0),
                     Objects.requireNonNull(session.getParameters().get("trackToken")).get(0),
                     Objects.requireNonNull(session.getParameters().get("md5origin")).get(0),
                     Objects.requireNonNull(session.getParameters().get("mv")).get(0),
                     logger
             );
-            //Fallback
+            //Resolved recently (seek), skip get_url & fallback checks
+            final String resolvedKey = qualityInfo.trackId + "_" + qualityInfo.quality;
             String sURL;
-            try {
-                sURL = qualityInfo.fallback(deezer);
-                if (sURL == null)
-                    throw new Exception("No more to fallback!");
-            } catch (Exception e) {
-                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Fallback failed!");
+            ResolvedStream resolvedStream = getResolved(resolvedKey);
+            if (resolvedStream != null) {
+                metrics.resolvedHits.incrementAndGet();
+                sURL = resolvedStream.url;
+                qualityInfo.quality = resolvedStream.quality;
+                qualityInfo.trackId = resolvedStream.trackId;
+                qualityInfo.encrypted = resolvedStream.encrypted;
+            } else {
+                //Fallback
+                metrics.resolvedMisses.incrementAndGet();
+                long resolveStart = System.currentTimeMillis();
+                try {
+                    qualityInfo.resolvedUrl = urlResolver.resolve(qualityInfo.trackToken, qualityInfo.quality);
+                    sURL = qualityInfo.fallback(deezer);
+                    if (sURL == null)
+                        throw new Exception("No more to fallback!");
+                } catch (Exception e) {
+                    return newFixedLengthResponse(Status.NOT_FOUND, MIME_PLAINTEXT, "Fallback failed!");
+                } finally {
+                    metrics.urlResolve.observe(System.currentTimeMillis() - resolveStart);
+                }
+                putResolved(resolvedKey, new ResolvedStream(sURL, qualityInfo));
+            }
+
+            final String streamURL = sURL;
+            final SegmentCache.Source source = (entry, rangeStart, rangeEnd) -> openDeezerRange(streamURL, entry, rangeStart, rangeEnd);
+            //Seek index is built on first time seek (here or from UI)
+            final String id = Objects.requireNonNull(session.getParameters().get("id")).get(0);
+            //Resolved file, fallback can change track & quality
+            final String seekKey = seekKey(id, "Stream", qualityInfo.trackId + "_" + qualityInfo.quality);
+            final Deezer.QualityInfo indexQualityInfo = qualityInfo;
+            final SeekIndexLoader seekIndexLoader = () -> buildStreamSeekIndex(indexQualityInfo, source);
+            if (session.getParameters().get("t") != null) {
+                try {
+                    SeekIndex seekIndex = seekIndex(seekKey, seekIndexLoader);
+                    startBytes = seekIndex.offset(Long.parseLong(session.getParameters().get("t").get(0)));
+                    isRanged = true;
+                } catch (Exception e) {
+                    Log.d("StreamServer", "Failed building seek index: " + e.getMessage());
+                }
             }
 
             //Calculate Deezer offsets
-            int _deezerStart = startBytes;
+            long _deezerStart = startBytes;
             if (qualityInfo.encrypted)
                 _deezerStart -= startBytes % 2048;
-            final int deezerStart = _deezerStart;
-            int dropBytes = startBytes % 2048;
-
-            //Start download
+            final long deezerStart = _deezerStart;
+            int dropBytes = (int) (startBytes % 2048);
+            //Encrypted data has to end on stripe boundary
+            long deezerEnd = end;
+            if (qualityInfo.encrypted && end != -1)
+                deezerEnd = end - end % 2048 + 2047;
+
+            //Cached segments from disk, only missing ones are downloaded
+            SegmentCache.RangeStream rangeStream = cache.openRange(qualityInfo.trackId, qualityInfo.quality, source, deezerStart, deezerEnd);
+            //Playback start or seek, not a short probe from the player
+            if (end == -1)
+                rangeStream.parallelStart();
             try {
-                URL url = new URL(sURL);
-                HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
-                //Set headers
-                connection.setConnectTimeout(10000);
-                connection.setRequestMethod("GET");
-                connection.setRequestProperty("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/79.0.3945.130 Safari/537.36");
-                connection.setRequestProperty("Accept-Language", "*");
-                connection.setRequestProperty("Accept", "*/*");
-                connection.setRequestProperty("Range", "bytes=" + Integer.toString(deezerStart) + "-" + ((end == -1) ? "" : Integer.toString(end)));
-                connection.connect();
+                long size = rangeStream.length();
+                long lastByte = (end == -1 || end >= size) ? size - 1 : end;
 
                 Response outResponse;
+                InputStream body;
                 // Encrypted response
                 if (qualityInfo.encrypted) {
-                    //Get decryption key
-                    final byte[] key = DeezerDecryptor.getKey(qualityInfo.trackId);
-
-                    outResponse = newFixedLengthResponse(
-                            isRanged ? Response.Status.PARTIAL_CONTENT : Response.Status.OK,
-                            (qualityInfo.quality == 9) ? "audio/flac" : "audio/mpeg",
-                            new BufferedInputStream(new FilterInputStream(connection.getInputStream()) {
-
-                                int counter = deezerStart / 2048;
-                                int drop = dropBytes;
-
-                                //Decryption stream
-                                @Override
-                                public int read(byte[] b, int off, int len) throws IOException {
-                                    //Read 2048b or EOF
-                                    byte[] buffer = new byte[2048];
-                                    int read = 0;
-                                    int totalRead = 0;
-                                    while (read != -1 && totalRead != 2048) {
-                                        read = in.read(buffer, totalRead, 2048 - totalRead);
-                                        if (read != -1)
-                                            totalRead += read;
-                                    }
-                                    if (totalRead == 0)
-                                        return -1;
-
-                                    //Not full chunk return unencrypted
-                                    if (totalRead != 2048) {
-                                        System.arraycopy(buffer, 0, b, off, totalRead);
-                                        return totalRead;
-                                    }
-                                    //Decrypt every 3rd full chunk
-                                    if ((counter % 3) == 0) {
-                                        buffer = DeezerDecryptor.decryptChunk(key, buffer);
-                                    }
-                                    //Drop bytes from rounding to 2048
-                                    if (drop > 0) {
-                                        int output = 2048 - drop;
-                                        System.arraycopy(buffer, drop, b, off, output);
-                                        drop = 0;
-                                        counter++;
-                                        return output;
-                                    }
-                                    //Copy
-                                    System.arraycopy(buffer, 0, b, off, 2048);
-                                    counter++;
-                                    return 2048;
-                                }
-                            }, 2048),
-                            connection.getContentLength() - dropBytes
-                    );
+                    //One decryptor (key & cipher) for whole stream
+                    DeezerDecryptor decryptor = new DeezerDecryptor(qualityInfo.trackId);
+                    body = new DeezerDecryptor.DecryptingInputStream(rangeStream, decryptor, deezerStart, dropBytes).measure(metrics);
                 } else {
                     // Decrypted
-                    outResponse = newFixedLengthResponse(
-                        isRanged ? Response.Status.PARTIAL_CONTENT : Response.Status.OK,
-                        (qualityInfo.quality == 9) ? "audio/flac" : "audio/mpeg",
-                        connection.getInputStream(),
-                        connection.getContentLength()
-                    );
+                    body = rangeStream;
                 }
+                //Whole track, copy offline under the original track id
+                if (startBytes == 0 && lastByte == size - 1)
+                    body = offlineTee.wrap(id, body, size, qualityInfo.quality);
+                //Player buffer lead, downloads are limited while it's low
+                body = bandwidth.stream(body, ThroughputEstimator.bitrate(qualityInfo.quality));
+                outResponse = newFixedLengthResponse(
+                        isRanged ? Status.PARTIAL_CONTENT : Status.OK,
+                        (qualityInfo.quality == 9) ? "audio/flac" : "audio/mpeg",
+                        body,
+                        lastByte - startBytes + 1
+                );
 
                 //Ranged header
                 if (isRanged) {
-                    String range = "bytes " + Integer.toString(startBytes) + "-" + Integer.toString((end == -1) ? (connection.getContentLength() + deezerStart) - 1 : end);
-                    range += "/" + Integer.toString(connection.getContentLength() + deezerStart);
+                    String range = "bytes " + Long.toString(startBytes) + "-" + Long.toString(lastByte);
+                    range += "/" + Long.toString(size);
                     outResponse.addHeader("Content-Range", range);
                 }
                 outResponse.addHeader("Accept-Ranges", "bytes");
+                outResponse.countBytes(metrics.servedBytes(StreamMetrics.Source.STREAM));
 
                 //Save stream info, use original track id since this is used to communicate with Flutter UI
-                streams.put(Objects.requireNonNull(session.getParameters().get("id")).get(0), new StreamInfo(
+                streams.put(id, new StreamInfo(
                         ((qualityInfo.quality == 9) ? "FLAC" : "MP3"),
-                        deezerStart + connection.getContentLength(),
-                        "Stream"
+                        size,
+                        "Stream",
+                        seekKey,
+                        seekIndexLoader
                 ));
 
                 return outResponse;
             } catch (Exception e) {
                 e.printStackTrace();
+                try {
+                    rangeStream.close();
+                } catch (IOException ignored) {}
+                //URL might have expired early, resolve again next time
+                invalidateResolved(resolvedKey);
+            }
+            return newFixedLengthResponse(Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Failed getting data!");
+        }
+
+        //Parse headers of streamed track, read through segment cache
+        private SeekIndex buildStreamSeekIndex(Deezer.QualityInfo qualityInfo, SegmentCache.Source source) throws Exception {
+            final DeezerDecryptor decryptor = qualityInfo.encrypted ? new DeezerDecryptor(qualityInfo.trackId) : null;
+            long size;
+            try (SegmentCache.RangeStream probe = cache.openRange(qualityInfo.trackId, qualityInfo.quality, source, 0, 0)) {
+                size = probe.length();
+            }
+            //Headers are parsed with many small reads, each would be a range request with cache disabled
+            return SeekIndex.build(SeekIndex.buffered((position, b, off, len) -> {
+                if (position >= size) return -1;
+                //Decryption works on whole stripes
+                long start = position;
+                long end = Math.min(position + len, size) - 1;
+                if (decryptor != null) {
+                    start -= position % 2048;
+                    end = end - end % 2048 + 2047;
+                }
+                try (SegmentCache.RangeStream range = cache.openRange(qualityInfo.trackId, qualityInfo.quality, source, start, end)) {
+                    InputStream inputStream = (decryptor == null) ? range :
+                            new DeezerDecryptor.DecryptingInputStream(range, decryptor, start, (int) (position - start));
+                    int total = 0;
+                    while (total < len) {
+                        int read = inputStream.read(b, off + total, len - total);
+                        if (read == -1) break;
+                        total += read;
+                    }
+                    return (total == 0) ? -1 : total;
+                }
+            }, SEEK_HEADER_BLOCK), size);
+        }
+
+        //Open range of track on Deezer CDN, passes total length to cache entry
+        private InputStream openDeezerRange(String sURL, SegmentCache.Entry entry, long start, long end) throws IOException {
+            URL url = new URL(sURL);
+            HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+            //Set headers
+            connection.setConnectTimeout(10000);
+            connection.setRequestMethod("GET");
+            connection.setRequestProperty("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/79.0.3945.130 Safari/537.36");
+            connection.setRequestProperty("Accept-Language", "*");
+            connection.setRequestProperty("Accept", "*/*");
+            connection.setRequestProperty("Range", "bytes=" + Long.toString(start) + "-" + ((end == -1) ? "" : Long.toString(end)));
+            long connectStart = System.currentTimeMillis();
+            int responseCode;
+            try {
+                connection.connect();
+                responseCode = connection.getResponseCode();
+            } catch (IOException e) {
+                metrics.upstreamError(0);
+                throw e;
+            }
+            metrics.upstreamFirstByte.observe(System.currentTimeMillis() - connectStart);
+            if (responseCode >= 400) {
+                metrics.upstreamError(responseCode);
+                connection.disconnect();
+                throw new IOException("CDN response code: " + responseCode);
+            }
+
+            //Total length from "bytes start-end/total"
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange != null && contentRange.contains("/")) {
+                entry.setLength(Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim()));
+            } else if (start == 0 && end == -1) {
+                entry.setLength(connection.getContentLength());
+            } else {
+                connection.disconnect();
+                throw new IOException("Missing Content-Range in CDN response");
             }
-            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Failed getting data!");
+            return throughput.measure(connection.getInputStream());
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,194 @@
+package definitely.not.deezer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Rolling estimate of CDN download throughput, measured on reads from upstream connections.
+ * Samples are bytes of all open connections over wall clock time, so parallel fetches add up instead of each
+ * reporting its share. While the consumer is the bottleneck the socket buffer fills between reads and those
+ * reads return instantly, such samples are dropped instead.
+ * Used to pick stream quality for "auto".
+ */
+public class ThroughputEstimator {
+    //Bytes per sample, smaller reads are too noisy
+    private static final long SAMPLE_BYTES = 256 * 1024;
+    //Last part of a connection still counts as sample
+    private static final long MIN_SAMPLE_BYTES = 32 * 1024;
+    //Sample is dropped when more of its time was spent outside read
+    private static final double MAX_CONSUMER_SHARE = 0.2;
+    //Weight of the newest sample
+    private static final double ALPHA = 0.3;
+    //Estimate older than this doesn't describe current connection
+    private static final long MAX_AGE = 5 * 60 * 1000;
+    //Download has to be this many times faster than playback
+    private static final double HEADROOM = 2.0;
+    //Upper bitrates in bit/s
+    private static final long FLAC_BITRATE = 1411 * 1000;
+    private static final long MP3_320_BITRATE = 320 * 1000;
+    private static final long MP3_128_BITRATE = 128 * 1000;
+
+    //Bytes per second, -1 = no samples yet
+    private double estimate = -1;
+    private long updated = 0;
+
+    //Window shared by all open connections
+    private int open = 0;
+    private long windowStart = 0;
+    private long lastEvent = 0;
+    private long windowBytes = 0;
+    //Time blocked in read, summed over connections
+    private long readNanos = 0;
+    //Time connections were open, summed over connections
+    private long openNanos = 0;
+
+    /**
+     * @param bytes Bytes read
+     * @param nanos Time spent reading them
+     */
+    synchronized void addSample(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) return;
+        double sample = bytes * 1e9 / nanos;
+        long now = System.currentTimeMillis();
+        if (estimate < 0 || now - updated > MAX_AGE)
+            estimate = sample;
+        else
+            estimate = ALPHA * sample + (1 - ALPHA) * estimate;
+        updated = now;
+    }
+
+    private void advance(long now) {
+        if (now <= lastEvent) return;
+        openNanos += open * (now - lastEvent);
+        lastEvent = now;
+    }
+
+    //First read on connection
+    private synchronized void opened(long now) {
+        if (open == 0) {
+            windowStart = now;
+            lastEvent = now;
+            windowBytes = 0;
+            readNanos = 0;
+            openNanos = 0;
+        } else {
+            advance(now);
+        }
+        open++;
+    }
+
+    private synchronized void received(long bytes, long nanos, long now) {
+        advance(now);
+        windowBytes += bytes;
+        readNanos += nanos;
+        if (windowBytes >= SAMPLE_BYTES)
+            flush(now);
+    }
+
+    /**
+     * @param last End of last read on connection, time after it isn't part of the sample
+     */
+    private synchronized void closed(long last) {
+        advance(last);
+        open--;
+        if (open == 0 && windowBytes >= MIN_SAMPLE_BYTES)
+            flush(lastEvent);
+    }
+
+    //Next sample starts right away, time until its first read counts too
+    private void flush(long now) {
+        long wall = now - windowStart;
+        if (openNanos - readNanos <= openNanos * MAX_CONSUMER_SHARE)
+            addSample(windowBytes, wall);
+        windowStart = now;
+        windowBytes = 0;
+        readNanos = 0;
+        openNanos = 0;
+    }
+
+    /**
+     * @return Estimated throughput in bit/s, -1 if unknown or outdated
+     */
+    synchronized long getEstimate() {
+        if (estimate < 0 || System.currentTimeMillis() - updated > MAX_AGE)
+            return -1;
+        return (long) (estimate * 8);
+    }
+
+    /**
+     * Pick highest quality which downloads well faster than it plays.
+     * @return Deezer quality (9 = FLAC, 3 = MP3 320, 1 = MP3 128)
+     */
+    int pickQuality() {
+        long estimate = getEstimate();
+        //Unknown, start in the middle, first stream will measure
+        if (estimate == -1)
+            return 3;
+        if (estimate >= FLAC_BITRATE * HEADROOM)
+            return 9;
+        if (estimate >= MP3_320_BITRATE * HEADROOM)
+            return 3;
+        return 1;
+    }
+
+    /**
+     * @param quality Deezer quality
+     * @return Upper playback bitrate of quality in bit/s
+     */
+    static long bitrate(int quality) {
+        switch (quality) {
+            case 9:
+                return FLAC_BITRATE;
+            case 3:
+                return MP3_320_BITRATE;
+            default:
+                return MP3_128_BITRATE;
+        }
+    }
+
+    /**
+     * Wrap upstream stream to measure reads from it.
+     * @param inputStream Connection stream
+     * @return Measured stream
+     */
+    InputStream measure(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            boolean opened = false;
+            boolean closed = false;
+            //End of last read
+            long last = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                if (!opened && !closed) {
+                    opened = true;
+                    last = start;
+                    opened(start);
+                }
+                int read = super.read(b, off, len);
+                if (read > 0 && !closed) {
+                    long now = System.nanoTime();
+                    last = now;
+                    received(read, now - start, now);
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (opened && !closed)
+                    closed(last);
+                closed = true;
+                super.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,123 @@
+package definitely.not.deezer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends song.getListData lookups from concurrent threads as few requests.
+ * A lookup is sent right away, lookups arriving while a request is running are queued
+ * and sent together as the next one. Each caller gets the row with its SNG_ID.
+ */
+public class TrackDataBatcher {
+    //IDs per request
+    private static final int MAX_IDS = 100;
+    private static final long TIMEOUT = 30 * 1000;
+
+    private final Deezer deezer;
+    //Waiting to be sent, by track ID
+    private final LinkedHashMap<String, Lookup> pending = new LinkedHashMap<>();
+    private boolean flushing = false;
+
+    //Result of single lookup, shared by callers of the same ID
+    private static class Lookup {
+        final CountDownLatch done = new CountDownLatch(1);
+        JSONObject data;
+        Exception error;
+    }
+
+    TrackDataBatcher(Deezer deezer) {
+        this.deezer = deezer;
+    }
+
+    /**
+     * Get private track data (row of song.getListData).
+     * @param trackId Track ID
+     * @return Track data
+     * @throws Exception If the request failed or the track wasn't returned
+     */
+    JSONObject get(String trackId) throws Exception {
+        Lookup lookup;
+        boolean flush = false;
+        synchronized (this) {
+            lookup = pending.get(trackId);
+            if (lookup == null) {
+                lookup = new Lookup();
+                pending.put(trackId, lookup);
+            }
+            //Nothing running, send now, otherwise the running flush picks it up
+            if (!flushing) {
+                flushing = true;
+                flush = true;
+            }
+        }
+
+        if (flush)
+            flush();
+
+        if (!lookup.done.await(TIMEOUT, TimeUnit.MILLISECONDS))
+            throw new Exception("Timed out waiting for track data: " + trackId);
+        if (lookup.error != null)
+            throw lookup.error;
+        return lookup.data;
+    }
+
+    //Send pending lookups until none are left, MAX_IDS per request
+    private void flush() {
+        while (true) {
+            Map<String, Lookup> batch = new LinkedHashMap<>();
+            synchronized (this) {
+                Iterator<Map.Entry<String, Lookup>> iterator = pending.entrySet().iterator();
+                while (batch.size() < MAX_IDS && iterator.hasNext()) {
+                    Map.Entry<String, Lookup> entry = iterator.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+                if (batch.isEmpty()) {
+                    flushing = false;
+                    return;
+                }
+            }
+            send(batch);
+        }
+    }
+
+    private void send(Map<String, Lookup> batch) {
+        try {
+            //Numeric IDs as numbers, like single lookups
+            JSONArray ids = new JSONArray();
+            for (String id : batch.keySet()) {
+                try {
+                    ids.put(Long.parseLong(id));
+                } catch (NumberFormatException e) {
+                    ids.put(id);
+                }
+            }
+            JSONObject body = new JSONObject();
+            body.put("sng_ids", ids);
+            JSONObject out = deezer.callGWAPI("song.getListData", body.toString());
+            JSONArray data = out.getJSONObject("results").getJSONArray("data");
+            for (int i = 0; i < data.length(); i++) {
+                JSONObject row = data.getJSONObject(i);
+                Lookup lookup = batch.get(row.optString("SNG_ID"));
+                if (lookup != null && lookup.data == null)
+                    lookup.data = row;
+            }
+            //Only exact matches, row of other track would stream wrong audio
+            for (Map.Entry<String, Lookup> entry : batch.entrySet()) {
+                if (entry.getValue().data == null)
+                    entry.getValue().error = new Exception("Track data not returned: " + entry.getKey());
+            }
+        } catch (Exception e) {
+            for (Lookup lookup : batch.values())
+                lookup.error = e;
+        }
+        for (Lookup lookup : batch.values())
+            lookup.done.countDown();
+    }
+}
@@ -0,0 +1,124 @@
+package definitely.not.deezer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves CDN URLs of queued tracks with batched get_url requests.
+ * A miss resolves the requested track together with the next pending ones of the same quality,
+ * later lookups are served from the results until the URLs expire.
+ */
+public class TrackUrlResolver {
+    private static final String TAG = "TrackUrlResolver";
+    //Tokens per get_url request
+    static final int BATCH_SIZE = 50;
+    private static final int CACHE_SIZE = 512;
+    //Failed tracks go through fallback instead of another batch
+    private static final long FAILED_TTL = 60 * 1000;
+
+    private final Deezer deezer;
+    //Tracks needed soon, in queue order, track token -> quality
+    private final LinkedHashMap<String, Integer> pending = new LinkedHashMap<>();
+    //Being resolved by another thread, track token_quality
+    private final Set<String> inflight = new HashSet<>();
+    //Resolved URLs by track token_quality, null URL = failed, use fallback
+    private final LinkedHashMap<String, Resolved> resolved = new LinkedHashMap<String, Resolved>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Resolved> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static class Resolved {
+        final String url;
+        final long expires;
+
+        Resolved(String url, long expires) {
+            this.url = url;
+            this.expires = expires;
+        }
+    }
+
+    TrackUrlResolver(Deezer deezer) {
+        this.deezer = deezer;
+    }
+
+    /**
+     * Replace list of tracks which will be resolved soon.
+     * @param tracks Track token -> quality, in queue order
+     */
+    synchronized void setPending(LinkedHashMap<String, Integer> tracks) {
+        pending.clear();
+        pending.putAll(tracks);
+    }
+
+    /**
+     * Get URL of track, resolves it with pending tracks in one request if not known.
+     * @param trackToken Track token
+     * @param quality Requested quality
+     * @return URL or null if it has to go through fallback
+     */
+    String resolve(String trackToken, int quality) {
+        String key = trackToken + "_" + quality;
+        List<String> batch = new ArrayList<>();
+        synchronized (this) {
+            //Wait for batch already containing the track
+            while (inflight.contains(key)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            Resolved cached = getResolved(key);
+            if (cached != null)
+                return cached.url;
+
+            //New batch: this track + pending of the same quality, the ones queued after it first
+            batch.add(trackToken);
+            List<String> candidates = new ArrayList<>(pending.keySet());
+            int start = candidates.indexOf(trackToken) + 1;
+            for (int i = 0; i < candidates.size() && batch.size() < BATCH_SIZE; i++) {
+                String token = candidates.get((start + i) % candidates.size());
+                String pendingKey = token + "_" + quality;
+                if (token.equals(trackToken) || pending.get(token) != quality || inflight.contains(pendingKey) || getResolved(pendingKey) != null)
+                    continue;
+                batch.add(token);
+            }
+            for (String token : batch)
+                pending.remove(token);
+            for (String token : batch)
+                inflight.add(token + "_" + quality);
+        }
+
+        Map<String, String> urls = deezer.getTrackUrls(batch, quality);
+        Log.d(TAG, "Resolved " + urls.size() + "/" + batch.size() + " tracks in one request");
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (String token : batch) {
+                String url = urls.get(token);
+                resolved.put(token + "_" + quality, new Resolved(url, (url != null) ? StreamServer.ResolvedStream.expiry(url, now) : now + FAILED_TTL));
+                inflight.remove(token + "_" + quality);
+            }
+            notifyAll();
+            return urls.get(trackToken);
+        }
+    }
+
+    //Not expired result, has to hold lock
+    private Resolved getResolved(String key) {
+        Resolved cached = resolved.get(key);
+        if (cached != null && cached.expires <= System.currentTimeMillis()) {
+            resolved.remove(key);
+            return null;
+        }
+        return cached;
+    }
+}
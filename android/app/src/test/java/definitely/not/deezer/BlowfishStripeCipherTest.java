@@ -0,0 +1,80 @@
+package definitely.not.deezer;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Stripe decryption checked against the JCE Blowfish implementation.
+ */
+public class BlowfishStripeCipherTest {
+    private static final byte[] IV = {0, 1, 2, 3, 4, 5, 6, 7};
+    private static final String[] TRACK_IDS = {"3135556", "1109731", "916424", "0"};
+
+    //Key derivation written out with strings, independent from DeezerDecryptor.getKey
+    static byte[] referenceKey(String trackId) throws Exception {
+        byte[] digest = MessageDigest.getInstance("MD5").digest(trackId.getBytes(StandardCharsets.US_ASCII));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest)
+            hex.append(String.format("%02x", b & 0xFF));
+        String secret = "g4el58wc0zvf9na1";
+        byte[] key = new byte[16];
+        for (int i = 0; i < 16; i++)
+            key[i] = (byte) (hex.charAt(i) ^ hex.charAt(i + 16) ^ secret.charAt(i));
+        return key;
+    }
+
+    static Cipher referenceCipher(String trackId, int mode) throws Exception {
+        Cipher cipher = Cipher.getInstance("Blowfish/CBC/NoPadding");
+        cipher.init(mode, new SecretKeySpec(referenceKey(trackId), "Blowfish"), new IvParameterSpec(IV));
+        return cipher;
+    }
+
+    @Test
+    public void keyMatchesReference() throws Exception {
+        for (String trackId : TRACK_IDS)
+            assertArrayEquals(trackId, referenceKey(trackId), DeezerDecryptor.getKey(trackId));
+    }
+
+    @Test
+    public void decryptStripeMatchesJce() throws Exception {
+        Random random = new Random(1);
+        for (String trackId : TRACK_IDS) {
+            byte[] stripe = new byte[DeezerDecryptor.STRIPE_SIZE];
+            random.nextBytes(stripe);
+            byte[] expected = referenceCipher(trackId, Cipher.DECRYPT_MODE).doFinal(stripe);
+
+            BlowfishStripeCipher cipher = new BlowfishStripeCipher(DeezerDecryptor.getKey(trackId));
+            cipher.decryptStripe(stripe, 0);
+            assertArrayEquals(trackId, expected, stripe);
+        }
+    }
+
+    @Test
+    public void decryptStripeAtOffset() throws Exception {
+        byte[] plain = new byte[DeezerDecryptor.STRIPE_SIZE];
+        new Random(2).nextBytes(plain);
+        byte[] encrypted = referenceCipher("3135556", Cipher.ENCRYPT_MODE).doFinal(plain);
+
+        //Stripe in the middle of a buffer, surrounding bytes stay untouched
+        byte[] buffer = new byte[DeezerDecryptor.STRIPE_SIZE + 100];
+        Arrays.fill(buffer, (byte) 0x55);
+        System.arraycopy(encrypted, 0, buffer, 50, encrypted.length);
+        BlowfishStripeCipher.forTrack("3135556").decryptStripe(buffer, 50);
+
+        assertArrayEquals(plain, Arrays.copyOfRange(buffer, 50, 50 + plain.length));
+        byte[] filler = new byte[50];
+        Arrays.fill(filler, (byte) 0x55);
+        assertArrayEquals(filler, Arrays.copyOfRange(buffer, 0, 50));
+        assertArrayEquals(filler, Arrays.copyOfRange(buffer, buffer.length - 50, buffer.length));
+    }
+}
@@ -0,0 +1,118 @@
+package definitely.not.deezer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+
+import static definitely.not.deezer.DeezerDecryptor.STRIPE_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Round trips of encrypted tracks: encrypted with JCE Blowfish, decrypted by the streams and in place.
+ */
+public class DeezerDecryptorTest {
+    private static final String TRACK_ID = "3135556";
+    //Not stripe aligned, last incomplete stripe stays plain
+    private static final int TRACK_SIZE = STRIPE_SIZE * 20 + 777;
+
+    private static byte[] plainTrack() {
+        byte[] data = new byte[TRACK_SIZE];
+        new Random(3).nextBytes(data);
+        return data;
+    }
+
+    //Every 3rd full stripe encrypted, like on the CDN
+    private static byte[] encrypt(byte[] plain) throws Exception {
+        Cipher cipher = BlowfishStripeCipherTest.referenceCipher(TRACK_ID, Cipher.ENCRYPT_MODE);
+        byte[] out = plain.clone();
+        for (int stripe = 0; (stripe + 1) * STRIPE_SIZE <= out.length; stripe += 3)
+            cipher.doFinal(out, stripe * STRIPE_SIZE, STRIPE_SIZE, out, stripe * STRIPE_SIZE);
+        return out;
+    }
+
+    private static byte[] readAll(InputStream inputStream, int chunk) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunk];
+        int read;
+        while ((read = inputStream.read(buffer, 0, chunk)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void inputStreamDecrypts() throws Exception {
+        byte[] plain = plainTrack();
+        byte[] encrypted = encrypt(plain);
+        //Small reads go through the stripe buffer, large ones straight into the caller's buffer
+        for (int chunk : new int[]{1, 100, STRIPE_SIZE - 1, STRIPE_SIZE, 5000, 65536}) {
+            InputStream inputStream = new DeezerDecryptor.DecryptingInputStream(
+                    new ByteArrayInputStream(encrypted), new DeezerDecryptor(TRACK_ID), 0, 0);
+            assertArrayEquals("chunk " + chunk, plain, readAll(inputStream, chunk));
+        }
+    }
+
+    @Test
+    public void inputStreamDecryptsFromOffset() throws Exception {
+        byte[] plain = plainTrack();
+        byte[] encrypted = encrypt(plain);
+        //Range request starting inside a stripe, source starts at the stripe boundary
+        for (long start : new long[]{STRIPE_SIZE, STRIPE_SIZE * 3 + 10, STRIPE_SIZE * 7 - 1}) {
+            long aligned = start - start % STRIPE_SIZE;
+            InputStream source = new ByteArrayInputStream(encrypted, (int) aligned, encrypted.length - (int) aligned);
+            InputStream inputStream = new DeezerDecryptor.DecryptingInputStream(
+                    source, new DeezerDecryptor(TRACK_ID), aligned, (int) (start - aligned));
+            assertArrayEquals("start " + start, Arrays.copyOfRange(plain, (int) start, plain.length), readAll(inputStream, 4096));
+        }
+    }
+
+    @Test
+    public void outputStreamDecrypts() throws Exception {
+        byte[] plain = plainTrack();
+        byte[] encrypted = encrypt(plain);
+        Random random = new Random(4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream outputStream = new DeezerDecryptor.DecryptingOutputStream(out, new DeezerDecryptor(TRACK_ID), 0)) {
+            int position = 0;
+            while (position < encrypted.length) {
+                int n = Math.min(1 + random.nextInt(6000), encrypted.length - position);
+                outputStream.write(encrypted, position, n);
+                position += n;
+            }
+        }
+        assertArrayEquals(plain, out.toByteArray());
+    }
+
+    @Test
+    public void outputStreamResumesAtStripe() throws Exception {
+        byte[] plain = plainTrack();
+        byte[] encrypted = encrypt(plain);
+        int offset = STRIPE_SIZE * 4;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream outputStream = new DeezerDecryptor.DecryptingOutputStream(out, new DeezerDecryptor(TRACK_ID), offset)) {
+            outputStream.write(encrypted, offset, encrypted.length - offset);
+        }
+        assertArrayEquals(Arrays.copyOfRange(plain, offset, plain.length), out.toByteArray());
+    }
+
+    @Test
+    public void decryptFileInPlace() throws Exception {
+        byte[] plain = plainTrack();
+        File file = File.createTempFile("track", ".enc");
+        try {
+            Files.write(file.toPath(), encrypt(plain));
+            new DeezerDecryptor(TRACK_ID).decryptFileInPlace(file.getPath());
+            assertArrayEquals(plain, Files.readAllBytes(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package definitely.not.deezer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Seek indexes of small generated FLAC and MP3 files, headers only, audio is filler.
+ */
+public class SeekIndexTest {
+    private static final int SAMPLE_RATE = 44100;
+    //MPEG1 Layer III, 128 kbit/s, 44.1 kHz, stereo
+    private static final byte[] MP3_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+    private static final int MP3_FRAME_SIZE = 417;
+
+    private static SeekIndex.Reader reader(byte[] data) {
+        return (position, b, off, len) -> {
+            if (position >= data.length) return -1;
+            int n = (int) Math.min(len, data.length - position);
+            System.arraycopy(data, (int) position, b, off, n);
+            return n;
+        };
+    }
+
+    private static SeekIndex build(byte[] data) throws IOException {
+        return SeekIndex.build(reader(data), data.length);
+    }
+
+    //Metadata block header
+    private static void flacBlock(ByteArrayOutputStream out, int type, boolean last, byte[] data) throws IOException {
+        out.write((last ? 0x80 : 0) | type);
+        out.write(data.length >> 16);
+        out.write(data.length >> 8);
+        out.write(data.length);
+        out.write(data);
+    }
+
+    private static byte[] streamInfo(long totalSamples) {
+        ByteBuffer info = ByteBuffer.allocate(34);
+        info.putShort((short) 4096).putShort((short) 4096);
+        info.position(10);
+        //20 bits sample rate, 3 bits channels - 1, 5 bits bits per sample - 1, 36 bits total samples
+        long packed = ((long) SAMPLE_RATE << 44) | (1L << 41) | (15L << 36) | totalSamples;
+        info.putLong(packed);
+        return info.array();
+    }
+
+    private static byte[] seekTable(long[][] points) {
+        ByteBuffer table = ByteBuffer.allocate(points.length * 18);
+        for (long[] point : points)
+            table.putLong(point[0]).putLong(point[1]).putShort((short) 4096);
+        return table.array();
+    }
+
+    //Audio frames start at returned array length - audioSize
+    private static byte[] flac(byte[] prefix, long totalSamples, long[][] points, int audioSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(prefix);
+        out.write(new byte[]{'f', 'L', 'a', 'C'});
+        flacBlock(out, 0, points == null, streamInfo(totalSamples));
+        if (points != null)
+            flacBlock(out, 3, true, seekTable(points));
+        out.write(new byte[audioSize]);
+        return out.toByteArray();
+    }
+
+    private static byte[] id3(int size) {
+        byte[] tag = new byte[10 + size];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 4;
+        //Syncsafe
+        tag[6] = (byte) ((size >> 21) & 0x7F);
+        tag[7] = (byte) ((size >> 14) & 0x7F);
+        tag[8] = (byte) ((size >> 7) & 0x7F);
+        tag[9] = (byte) (size & 0x7F);
+        return tag;
+    }
+
+    @Test
+    public void flacSeekTable() throws IOException {
+        int audio = 1000000;
+        long[][] points = {{0, 0}, {SAMPLE_RATE * 4L, 400000}, {SAMPLE_RATE * 8L, 800000}, {-1, 0}};
+        byte[] data = flac(new byte[0], SAMPLE_RATE * 10L, points, audio);
+        long dataStart = data.length - audio;
+        SeekIndex index = build(data);
+
+        assertEquals(10000, index.durationMs);
+        assertEquals(dataStart, index.offset(0));
+        //Exact points, the one before target
+        assertEquals(dataStart, index.offset(3999));
+        assertEquals(dataStart + 400000, index.offset(4000));
+        assertEquals(dataStart + 400000, index.offset(7000));
+        assertEquals(dataStart + 800000, index.offset(9999));
+        //Clamped to track
+        assertEquals(dataStart + 800000, index.offset(60000));
+    }
+
+    @Test
+    public void flacWithoutSeekTableInterpolates() throws IOException {
+        int audio = 1000000;
+        byte[] data = flac(id3(300), SAMPLE_RATE * 10L, null, audio);
+        long dataStart = data.length - audio;
+        SeekIndex index = build(data);
+
+        assertEquals(10000, index.durationMs);
+        assertEquals(dataStart, index.offset(0));
+        assertEquals(dataStart + audio / 2, index.offset(5000));
+        assertEquals(data.length, index.offset(10000));
+    }
+
+    @Test
+    public void flacSeekTableLargerThanFile() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{'f', 'L', 'a', 'C'});
+        flacBlock(out, 0, false, streamInfo(SAMPLE_RATE));
+        //Header claims 16 MB table
+        out.write(new byte[]{(byte) 0x83, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        out.write(new byte[100]);
+        try {
+            build(out.toByteArray());
+            fail("Invalid seek table accepted");
+        } catch (IOException expected) {
+            //Rejected before reading it
+        }
+    }
+
+    @Test
+    public void mp3ConstantBitrate() throws IOException {
+        byte[] tag = id3(1000);
+        int audio = 160000;
+        byte[] data = Arrays.copyOf(tag, tag.length + audio);
+        System.arraycopy(MP3_HEADER, 0, data, tag.length, MP3_HEADER.length);
+        SeekIndex index = build(data);
+
+        //160000 bytes at 128 kbit/s
+        assertEquals(10000, index.durationMs);
+        assertEquals(tag.length, index.offset(0));
+        assertEquals(tag.length + audio / 2, index.offset(5000));
+    }
+
+    @Test
+    public void mp3Xing() throws IOException {
+        long frames = 1000;
+        int bytes = 400000;
+        byte[] data = new byte[bytes];
+        System.arraycopy(MP3_HEADER, 0, data, 0, MP3_HEADER.length);
+        //After 32 bytes of side information: tag, flags (frames, bytes, TOC), values, 100 entry TOC
+        ByteBuffer xing = ByteBuffer.wrap(data, 36, 8 + 8 + 100);
+        xing.put(new byte[]{'X', 'i', 'n', 'g'}).putInt(7).putInt((int) frames).putInt(bytes);
+        //Linear, except the second half of the track holds 3/4 of the bytes
+        for (int i = 0; i < 100; i++)
+            xing.put((byte) (i < 50 ? i * 64 / 50 : 64 + (i - 50) * 192 / 50));
+        SeekIndex index = build(data);
+
+        long durationMs = frames * 1152 * 1000 / SAMPLE_RATE;
+        assertEquals(durationMs, index.durationMs);
+        assertEquals(0, index.offset(0));
+        assertEquals(64L * bytes / 256, index.offset(durationMs / 2));
+        assertEquals(bytes, index.offset(durationMs));
+    }
+
+    @Test
+    public void mp3Vbri() throws IOException {
+        int entries = 10;
+        int framesPerEntry = 100;
+        byte[] data = new byte[entries * framesPerEntry * MP3_FRAME_SIZE + 1000];
+        System.arraycopy(MP3_HEADER, 0, data, 0, MP3_HEADER.length);
+        //32 bytes after frame header, 2 byte entries scaled by 2
+        ByteBuffer vbri = ByteBuffer.wrap(data, 36, 26 + entries * 2);
+        vbri.put(new byte[]{'V', 'B', 'R', 'I'}).putShort((short) 1).putShort((short) 0).putShort((short) 0);
+        vbri.putInt(data.length).putInt(entries * framesPerEntry);
+        vbri.putShort((short) entries).putShort((short) 2).putShort((short) 2).putShort((short) framesPerEntry);
+        for (int i = 0; i < entries; i++)
+            vbri.putShort((short) (framesPerEntry * MP3_FRAME_SIZE / 2));
+        SeekIndex index = build(data);
+
+        long entryMs = (long) framesPerEntry * 1152 * 1000 / SAMPLE_RATE;
+        assertEquals(entries * (long) framesPerEntry * 1152 * 1000 / SAMPLE_RATE, index.durationMs);
+        assertEquals(0, index.offset(0));
+        assertEquals(3L * framesPerEntry * MP3_FRAME_SIZE, index.offset(entryMs * 3));
+    }
+
+    @Test
+    public void bufferedReaderReadsSameBytes() throws IOException {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31);
+        int[] calls = {0};
+        SeekIndex.Reader source = reader(data);
+        SeekIndex.Reader buffered = SeekIndex.buffered((position, b, off, len) -> {
+            calls[0]++;
+            return source.read(position, b, off, len);
+        }, 4096);
+
+        byte[] out = new byte[100];
+        for (long position = 0; position < 4000; position += 100) {
+            assertEquals(100, buffered.read(position, out, 0, 100));
+            assertEquals(data[(int) position + 99], out[99]);
+        }
+        //Small reads are served from one block
+        assertEquals(1, calls[0]);
+        assertEquals(-1, buffered.read(data.length, out, 0, 100));
+    }
+}
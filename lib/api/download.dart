@@ -104,6 +104,10 @@ class DownloadManager {
         }
 
         serviceEvents.add({'action': 'onProgress', 'data': event['data']});
+      } else if (eventType == 'streamSaved') {
+        //Streamed track saved offline by stream server (stream to offline)
+        _handleCompletedPrivateDownload(
+            {'trackId': event['trackId'], 'isEpisode': false});
       } else {
         //Forward other/unknown events
         serviceEvents.add(e);
@@ -113,8 +117,9 @@ class DownloadManager {
     await platform.invokeMethod('loadDownloads');
   }
 
-  /// When a private download completes (including retries), this function
-  /// ensures its metadata is saved to the offline database.
+  /// When a private download completes (including retries) or a streamed
+  /// track is saved offline, this function ensures its metadata is saved to
+  /// the offline database.
   Future<void> _handleCompletedPrivateDownload(
       Map<dynamic, dynamic> downloadUpdate) async {
     final String trackId = downloadUpdate['trackId'];
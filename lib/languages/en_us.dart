@@ -464,6 +464,18 @@ const language_en_us = {
     'Preferences': 'Preferences',
     'Play blind test': 'Play blind test',
     'By ': 'By ',
-    'Out on ': 'Out on '
+    'Out on ': 'Out on ',
+    'Keep offline tracks encrypted': 'Keep offline tracks encrypted',
+    'Offline tracks are decrypted only while playing. Applies to new downloads.':
+        'Offline tracks are decrypted only while playing. Applies to new downloads.',
+    'Streaming cache': 'Streaming cache',
+    'Disabled': 'Disabled',
+    'Recently streamed tracks are kept to save data when seeking or replaying.':
+        'Recently streamed tracks are kept to save data when seeking or replaying.',
+    'Automatic (based on connection speed)':
+        'Automatic (based on connection speed)',
+    'Save streamed tracks offline': 'Save streamed tracks offline',
+    'Tracks played to the end are kept, replays don\'t use data.':
+        'Tracks played to the end are kept, replays don\'t use data.'
   }
 };
@@ -351,6 +351,9 @@ class _MainScreenState extends State<MainScreen>
   void _startStreamingServer() async {
     await DownloadManager.platform.invokeMethod('startServer', {
       'arl': settings.arl,
+      'streamCacheSize': settings.streamCacheSize,
+      'streamToOffline': settings.streamToOffline,
+      'offlineQuality': settings.getQualityInt(settings.offlineQuality),
     });
   }
 
@@ -21,6 +21,7 @@ import 'package:scrobblenaut/scrobblenaut.dart';
 import '../api/cache.dart';
 import '../api/deezer.dart';
 import '../api/definitions.dart';
+import '../api/download.dart';
 import '../settings.dart';
 import '../translations.i18n.dart';
 import '../ui/android_auto.dart';
@@ -523,7 +524,24 @@ class AudioPlayerHandler extends BaseAudioHandler
 
   Future<List<AudioSource>> _itemsToSources(List<MediaItem> mediaItems) async {
     var sources = await Future.wait(mediaItems.map(_itemToSource));
-    return sources.whereType<AudioSource>().toList();
+    List<AudioSource> out = sources.whereType<AudioSource>().toList();
+    _prefetchStreamUrls(out);
+    return out;
+  }
+
+  /// Send queued streams to stream server, so their URLs are resolved in batches.
+  void _prefetchStreamUrls(List<AudioSource> sources) {
+    List<Map<String, String>> tracks = [];
+    for (AudioSource source in sources) {
+      if (source is! UriAudioSource) continue;
+      Map<String, String> params = source.uri.queryParameters;
+      if (params['trackToken'] == null || params['q'] == null) continue;
+      tracks.add({'trackToken': params['trackToken']!, 'quality': params['q']!});
+    }
+    if (tracks.isEmpty) return;
+    DownloadManager.platform.invokeMethod('prefetchStreamUrls', {
+      'tracks': tracks
+    }).catchError((e) => Logger.root.warning('Failed sending queue to stream server: $e'));
   }
 
   Future<AudioSource?> _itemToSource(MediaItem mi) async {
@@ -553,7 +571,7 @@ class AudioPlayerHandler extends BaseAudioHandler
 
     //Due to current limitations of just_audio, quality fallback moved to DeezerDataSource in ExoPlayer
     //This just returns fake url that contains metadata
-    int quality = await getStreamQuality();
+    String quality = await getStreamQuality();
 
     List? streamPlaybackDetails =
         jsonDecode(mediaItem.extras?['playbackDetails']);
@@ -574,13 +592,15 @@ class AudioPlayerHandler extends BaseAudioHandler
   }
 
   /// Get requested stream quality based on connection and settings.
-  Future<int> getStreamQuality() async {
-    int quality = settings.getQualityInt(settings.mobileQuality);
+  /// 'auto' lets the stream server pick it by measured throughput.
+  Future<String> getStreamQuality() async {
+    AudioQuality quality = settings.mobileQuality;
     List<ConnectivityResult> conn = await Connectivity().checkConnectivity();
     if (conn.contains(ConnectivityResult.wifi)) {
-      quality = settings.getQualityInt(settings.wifiQuality);
+      quality = settings.wifiQuality;
     }
-    return quality;
+    if (quality == AudioQuality.AUTO) return 'auto';
+    return settings.getQualityInt(quality).toString();
   }
 
   /// Load new queue of MediaItems to just_audio & seek to given index & position
@@ -46,6 +46,12 @@ class Settings {
   late AudioQuality offlineQuality;
   @JsonKey(defaultValue: AudioQuality.FLAC)
   late AudioQuality downloadQuality;
+  //Streaming cache size in MB, 0 = disabled
+  @JsonKey(defaultValue: 256)
+  late int streamCacheSize;
+  //Save fully streamed tracks as offline files
+  @JsonKey(defaultValue: false)
+  late bool streamToOffline;
 
   //Download options
   String? downloadPath;
@@ -74,6 +80,8 @@ class Settings {
   late bool albumCover;
   @JsonKey(defaultValue: false)
   late bool nomediaFiles;
+  @JsonKey(defaultValue: false)
+  late bool encryptedOffline;
   @JsonKey(defaultValue: ', ')
   late String artistSeparator;
   @JsonKey(defaultValue: '%artist% - %title%')
@@ -191,7 +199,11 @@ class Settings {
 
   //JSON to forward into download service
   Map getServiceSettings() {
-    return {'json': jsonEncode(toJson())};
+    return {
+      'json': jsonEncode(toJson()),
+      //Streams are only saved offline in this quality
+      'offlineQuality': getQualityInt(offlineQuality),
+    };
   }
 
   void updateUseArtColor(bool v) {
@@ -677,7 +689,7 @@ class Settings {
   Map<String, dynamic> toJson() => _$SettingsToJson(this);
 }
 
-enum AudioQuality { MP3_128, MP3_320, FLAC, ASK }
+enum AudioQuality { MP3_128, MP3_320, FLAC, ASK, AUTO }
 
 enum Themes { Alchemy, Deezer, Spotify, Light, Black }
 
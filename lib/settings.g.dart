@@ -25,6 +25,8 @@ Settings _$SettingsFromJson(Map<String, dynamic> json) =>
       ..downloadQuality =
           $enumDecodeNullable(_$AudioQualityEnumMap, json['downloadQuality']) ??
           AudioQuality.FLAC
+      ..streamCacheSize = (json['streamCacheSize'] as num?)?.toInt() ?? 256
+      ..streamToOffline = json['streamToOffline'] as bool? ?? false
       ..downloadFilename =
           json['downloadFilename'] as String? ?? '%artist% - %title%'
       ..albumFolder = json['albumFolder'] as bool? ?? true
@@ -38,6 +40,7 @@ Settings _$SettingsFromJson(Map<String, dynamic> json) =>
       ..trackCover = json['trackCover'] as bool? ?? false
       ..albumCover = json['albumCover'] as bool? ?? true
       ..nomediaFiles = json['nomediaFiles'] as bool? ?? false
+      ..encryptedOffline = json['encryptedOffline'] as bool? ?? false
       ..artistSeparator = json['artistSeparator'] as String? ?? ', '
       ..singletonFilename =
           json['singletonFilename'] as String? ?? '%artist% - %title%'
@@ -108,6 +111,8 @@ Map<String, dynamic> _$SettingsToJson(Settings instance) => <String, dynamic>{
   'mobileQuality': _$AudioQualityEnumMap[instance.mobileQuality]!,
   'offlineQuality': _$AudioQualityEnumMap[instance.offlineQuality]!,
   'downloadQuality': _$AudioQualityEnumMap[instance.downloadQuality]!,
+  'streamCacheSize': instance.streamCacheSize,
+  'streamToOffline': instance.streamToOffline,
   'downloadPath': instance.downloadPath,
   'downloadFilename': instance.downloadFilename,
   'albumFolder': instance.albumFolder,
@@ -121,6 +126,7 @@ Map<String, dynamic> _$SettingsToJson(Settings instance) => <String, dynamic>{
   'trackCover': instance.trackCover,
   'albumCover': instance.albumCover,
   'nomediaFiles': instance.nomediaFiles,
+  'encryptedOffline': instance.encryptedOffline,
   'artistSeparator': instance.artistSeparator,
   'singletonFilename': instance.singletonFilename,
   'albumArtResolution': instance.albumArtResolution,
@@ -154,6 +160,7 @@ const _$AudioQualityEnumMap = {
   AudioQuality.MP3_320: 'MP3_320',
   AudioQuality.FLAC: 'FLAC',
   AudioQuality.ASK: 'ASK',
+  AudioQuality.AUTO: 'AUTO',
 };
 
 const _$ThemesEnumMap = {
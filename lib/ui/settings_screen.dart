@@ -1044,6 +1044,28 @@ class _SettingsScreenState extends State<SettingsScreen> {
                 crossAxisAlignment: CrossAxisAlignment.center,
                 children: <Widget>[const Icon(Icons.image)]),
           ),
+          ListTile(
+            title: Text('Keep offline tracks encrypted'.i18n),
+            subtitle: Text(
+                'Offline tracks are decrypted only while playing. Applies to new downloads.'
+                    .i18n),
+            trailing: Column(
+                mainAxisAlignment: MainAxisAlignment.center,
+                crossAxisAlignment: CrossAxisAlignment.center,
+                children: <Widget>[
+                  Switch(
+                    value: settings.encryptedOffline,
+                    onChanged: (v) {
+                      setState(() => settings.encryptedOffline = v);
+                      settings.save();
+                    },
+                  ),
+                ]),
+            leading: Column(
+                mainAxisAlignment: MainAxisAlignment.center,
+                crossAxisAlignment: CrossAxisAlignment.center,
+                children: <Widget>[const Icon(Icons.lock)]),
+          ),
           Padding(
             padding: EdgeInsets.fromLTRB(
               16,
@@ -1475,6 +1497,8 @@ class QualitySettings extends StatefulWidget {
 }
 
 class _QualitySettingsState extends State<QualitySettings> {
+  double _streamCacheSize = settings.streamCacheSize.toDouble();
+
   @override
   Widget build(BuildContext context) {
     return Scaffold(
@@ -1504,6 +1528,48 @@ class _QualitySettingsState extends State<QualitySettings> {
             leading: const Icon(Icons.file_download),
           ),
           const QualityPicker('download'),
+          const FreezerDivider(),
+          ListTile(
+            title: Text('Streaming cache'.i18n),
+            subtitle: Text(
+                'Recently streamed tracks are kept to save data when seeking or replaying.'
+                    .i18n),
+            leading: const Icon(Icons.sd_storage),
+          ),
+          Padding(
+            padding: const EdgeInsets.symmetric(vertical: 4.0),
+            child: Slider(
+                min: 0,
+                max: 2048,
+                divisions: 16,
+                value: _streamCacheSize,
+                activeColor: settings.primaryColor,
+                label: _streamCacheSize == 0
+                    ? 'Disabled'.i18n
+                    : '${_streamCacheSize.round()} MB',
+                onChanged: (double v) => setState(() => _streamCacheSize = v),
+                onChangeEnd: (double val) async {
+                  setState(() {
+                    settings.streamCacheSize = val.round();
+                    _streamCacheSize = settings.streamCacheSize.toDouble();
+                  });
+                  await settings.save();
+                }),
+          ),
+          ListTile(
+            title: Text('Save streamed tracks offline'.i18n),
+            subtitle: Text(
+                'Tracks played to the end are kept, replays don\'t use data.'
+                    .i18n),
+            leading: const Icon(Icons.offline_pin),
+            trailing: Switch(
+              value: settings.streamToOffline,
+              onChanged: (v) async {
+                setState(() => settings.streamToOffline = v);
+                await settings.save();
+              },
+            ),
+          ),
           ListenableBuilder(
               listenable: playerBarState,
               builder: (BuildContext context, Widget? child) {
@@ -1606,6 +1672,14 @@ class _QualityPickerState extends State<QualityPicker> {
             onChanged: (q) => _updateQuality(q!),
           ),
         ),
+        if (widget.field == 'mobile' || widget.field == 'wifi')
+          ListTile(
+              title: Text('Automatic (based on connection speed)'.i18n),
+              leading: Radio(
+                groupValue: _quality,
+                value: AudioQuality.AUTO,
+                onChanged: (q) => _updateQuality(q!),
+              )),
         if (widget.field == 'download')
           ListTile(
               title: Text('Ask before downloading'.i18n),
@@ -1832,8 +1906,12 @@ class _ExportsSettingsState extends State<ExportsSettings> {
                           .create(recursive: true);
                     }
                     if (await File(p.join(dirPath, track.id)).exists()) {
-                      await File(p.join(dirPath, track.id))
-                          .copy(destinationPath);
+                      //Native copy, decrypts tracks kept encrypted
+                      await DownloadManager.platform.invokeMethod(
+                          'exportOffline', {
+                        'path': p.join(dirPath, track.id),
+                        'destination': destinationPath
+                      });
                     }
                   } catch (e) {
                     setState(() {